@@ -0,0 +1,33 @@
+package co.kica.fileutils;
+
+import java.io.IOException;
+
+/*
+ * A file that holds other files, mounted into the SmartFile namespace.  Paths
+ * are relative to the container, separated by "/", and "" is the container
+ * itself.
+ */
+public interface Container {
+    SmartFile.SmartType getType();
+
+    boolean exists(String path);
+
+    boolean isDirectory(String path);
+
+    long length(String path);
+
+    /* names of the files and folders directly inside path */
+    String[] list(String path);
+
+    /* the decoded contents of the file at path */
+    byte[] read(String path) throws IOException;
+
+    PagedReader open(String path) throws IOException;
+
+    /*
+     * called when VirtualFS unmounts the container, drops whatever it has
+     * loaded or open.  SmartFiles that resolved through it may still read,
+     * anything needed again is loaded again.
+     */
+    void close();
+}
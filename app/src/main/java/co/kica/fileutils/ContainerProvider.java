@@ -0,0 +1,18 @@
+package co.kica.fileutils;
+
+/*
+ * Knows how to mount one kind of container, registered with VirtualFS.
+ */
+public interface ContainerProvider {
+    /* true if a file with this name should be mounted by this provider */
+    boolean accepts(String name);
+
+    /*
+     * true if the container itself is browsed as a folder, otherwise it stays
+     * a plain file and is only mounted when a path goes through it
+     */
+    boolean isFolder();
+
+    /* mounting must be cheap, nothing should be read until the container is used */
+    Container mount(ContainerSource source);
+}
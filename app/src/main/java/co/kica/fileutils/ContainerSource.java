@@ -0,0 +1,86 @@
+package co.kica.fileutils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/*
+ * Where a container's bytes come from: a physical file, or a file inside
+ * another container.
+ */
+public class ContainerSource {
+    private String root;
+    private String subpath;
+    private File file = null;
+    private Container parent = null;
+    private String entry = null;
+    private long modified;
+
+    public ContainerSource(File file) {
+        this.root = file.getAbsolutePath();
+        this.subpath = "";
+        this.file = file;
+        this.modified = file.lastModified();
+    }
+
+    /* entry of parent, found at subpath below the physical file root */
+    public ContainerSource(String root, String subpath, Container parent, String entry, long modified) {
+        this.root = root;
+        this.subpath = subpath;
+        this.parent = parent;
+        this.entry = entry;
+        this.modified = modified;
+    }
+
+    public String getPath() {
+        return this.subpath.length() == 0 ? this.root : this.root + File.separator + this.subpath;
+    }
+
+    public String getName() {
+        String path = this.getPath();
+        return path.substring(path.lastIndexOf(File.separatorChar) + 1);
+    }
+
+    /* the physical file, null when the container is inside another one */
+    public File getFile() {
+        return this.file;
+    }
+
+    /* mtime of the physical file everything is stored in */
+    public long lastModified() {
+        return this.modified;
+    }
+
+    public long length() {
+        return this.file != null ? this.file.length() : this.parent.length(this.entry);
+    }
+
+    /* whole contents, entries of other containers go through the shared decoded-entry cache */
+    public byte[] read() throws IOException {
+        if (this.file == null) {
+            String key = SmartFileInputStream.cacheKey(this.root, this.subpath, this.modified, this.length());
+            byte[] data = SmartFileInputStream.getCached(key);
+            if (data == null) {
+                data = this.parent.read(this.entry);
+                SmartFileInputStream.putCached(key, data);
+            }
+            return data;
+        }
+
+        byte[] data = new byte[(int)this.file.length()];
+        FileInputStream fis = new FileInputStream(this.file);
+        try {
+            int pos = 0;
+            while (pos < data.length) {
+                int len = fis.read(data, pos, data.length - pos);
+                if (len == -1) {
+                    throw new IOException("short read " + this.file.getAbsolutePath());
+                }
+                pos += len;
+            }
+        } finally {
+            fis.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,130 @@
+package co.kica.fileutils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Gzipped files hold a single file named after them without the ".gz".  They
+ * stay files in the browser, the tape loaders already inflate them, but a
+ * path can go through one, e.g. game.tzx.gz/game.tzx.
+ */
+public class GzipContainer implements Container {
+    public static final int CHUNK = 32768;
+    public static final long MAX_SIZE_HINT = 64L * 1024L * 1024L;
+
+    private ContainerSource source;
+    private String name;
+
+    public static class Provider implements ContainerProvider {
+        public boolean accepts(String name) {
+            return name.toLowerCase().endsWith(".gz");
+        }
+
+        public boolean isFolder() {
+            return false;
+        }
+
+        public Container mount(ContainerSource source) {
+            return new GzipContainer(source);
+        }
+    }
+
+    public GzipContainer(ContainerSource source) {
+        this.source = source;
+        String n = source.getName();
+        this.name = n.substring(0, n.length() - 3);
+        if (this.name.length() == 0) {
+            this.name = "data";
+        }
+    }
+
+    public SmartFile.SmartType getType() {
+        return SmartFile.SmartType.GZIPFILE;
+    }
+
+    public boolean exists(String path) {
+        return path.length() == 0 || path.equals(this.name);
+    }
+
+    public boolean isDirectory(String path) {
+        return path.length() == 0;
+    }
+
+    /* from the ISIZE trailer, so nothing has to be inflated */
+    public long length(String path) {
+        if (!path.equals(this.name)) {
+            return 0L;
+        }
+
+        byte[] trailer = new byte[4];
+        try {
+            if (this.source.getFile() != null) {
+                RandomAccessFile raf = new RandomAccessFile(this.source.getFile(), "r");
+                try {
+                    if (raf.length() < 18) {
+                        return 0L;
+                    }
+                    raf.seek(raf.length() - 4);
+                    raf.readFully(trailer);
+                } finally {
+                    raf.close();
+                }
+            } else {
+                byte[] data = this.source.read();
+                if (data.length < 18) {
+                    return 0L;
+                }
+                System.arraycopy(data, data.length - 4, trailer, 0, 4);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0L;
+        }
+
+        return (long)(trailer[0] & 0xff) | (long)(trailer[1] & 0xff) << 8 | (long)(trailer[2] & 0xff) << 16 | (long)(trailer[3] & 0xff) << 24;
+    }
+
+    public String[] list(String path) {
+        return path.length() == 0 ? new String[] { this.name } : new String[0];
+    }
+
+    public byte[] read(String path) throws IOException {
+        if (!path.equals(this.name)) {
+            throw new FileNotFoundException(this.source.getPath() + "/" + path);
+        }
+
+        InputStream src;
+        if (this.source.getFile() != null) {
+            src = new FileInputStream(this.source.getFile());
+        } else {
+            src = new ByteArrayInputStream(this.source.read());
+        }
+
+        GZIPInputStream gis = new GZIPInputStream(src, CHUNK);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int)Math.max(CHUNK, Math.min(MAX_SIZE_HINT, this.length(path))));
+        try {
+            byte[] buff = new byte[CHUNK];
+            int len;
+            while ((len = gis.read(buff)) != -1) {
+                out.write(buff, 0, len);
+            }
+        } finally {
+            gis.close();
+        }
+        return out.toByteArray();
+    }
+
+    public PagedReader open(String path) throws IOException {
+        return PagedReader.forBuffer(this.read(path));
+    }
+
+    // nothing is kept, every read inflates from the source
+    public void close() {
+    }
+}
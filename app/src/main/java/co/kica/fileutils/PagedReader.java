@@ -0,0 +1,160 @@
+package co.kica.fileutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/*
+ * Random access to file contents a page at a time, so looking at a few bytes
+ * of a file doesn't mean reading or inflating all of it.  The most recently
+ * used pages are kept.
+ */
+public abstract class PagedReader {
+    public static final int PAGE_SIZE = 4096;
+    public static final int MAX_PAGES = 16;
+
+    private long length;
+    private LinkedHashMap<Long, byte[]> pages = new LinkedHashMap<Long, byte[]>(MAX_PAGES, 0.75F, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return this.size() > MAX_PAGES;
+        }
+    };
+
+    protected PagedReader(long length) {
+        this.length = length;
+    }
+
+    /* fills page with the bytes at pos, the page is never past the end of the file */
+    protected abstract void fill(long pos, byte[] page) throws IOException;
+
+    public long length() {
+        return this.length;
+    }
+
+    /* lets go of whatever the reader holds open, pages already read stay readable */
+    public void close() throws IOException {
+    }
+
+    private synchronized byte[] getPage(long index) throws IOException {
+        byte[] page = this.pages.get(index);
+        if (page == null) {
+            long pos = index * PAGE_SIZE;
+            page = new byte[(int)Math.min(PAGE_SIZE, this.length - pos)];
+            this.fill(pos, page);
+            this.pages.put(index, page);
+        }
+        return page;
+    }
+
+    /* returns the byte at pos, or -1 if pos is outside the file */
+    public int byteAt(long pos) throws IOException {
+        if (pos < 0 || pos >= this.length) {
+            return -1;
+        }
+        return this.getPage(pos / PAGE_SIZE)[(int)(pos % PAGE_SIZE)] & 0xff;
+    }
+
+    /* reads up to dst.length bytes from pos, returns the count or -1 at the end of the file */
+    public int read(long pos, byte[] dst, int off, int len) throws IOException {
+        if (pos < 0 || pos >= this.length) {
+            return -1;
+        }
+
+        int count = (int)Math.min(len, this.length - pos);
+        int done = 0;
+        while (done < count) {
+            long p = pos + done;
+            byte[] page = this.getPage(p / PAGE_SIZE);
+            int inPage = (int)(p % PAGE_SIZE);
+            int n = Math.min(count - done, page.length - inPage);
+            System.arraycopy(page, inPage, dst, off + done, n);
+            done += n;
+        }
+
+        return count;
+    }
+
+    public static PagedReader forFile(final File file) {
+        return new PagedReader(file.length()) {
+            protected void fill(long pos, byte[] page) throws IOException {
+                // opened per miss so idle SmartFiles don't hold file descriptors
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    FileChannel ch = raf.getChannel();
+                    ByteBuffer bb = ByteBuffer.wrap(page);
+                    while (bb.hasRemaining()) {
+                        if (ch.read(bb, pos + bb.position()) == -1) {
+                            break;
+                        }
+                    }
+                } finally {
+                    raf.close();
+                }
+            }
+        };
+    }
+
+    public static PagedReader forZipEntry(final ZipIndex zip, final ZipEntry entry) {
+        return new PagedReader(Math.max(0L, entry.getSize())) {
+            private InputStream is = null;
+            private long streamPos = 0L;
+
+            protected void fill(long pos, byte[] page) throws IOException {
+                // inflation only runs forwards, going back means starting the entry again
+                if (this.is == null || pos < this.streamPos) {
+                    if (this.is != null) {
+                        this.is.close();
+                    }
+                    this.is = zip.getInputStream(entry);
+                    this.streamPos = 0L;
+                }
+
+                while (this.streamPos < pos) {
+                    long n = this.is.skip(pos - this.streamPos);
+                    if (n <= 0) {
+                        throw new IOException("short zip entry " + entry.getName());
+                    }
+                    this.streamPos += n;
+                }
+
+                int done = 0;
+                while (done < page.length) {
+                    int n = this.is.read(page, done, page.length - done);
+                    if (n == -1) {
+                        break;
+                    }
+                    done += n;
+                }
+                this.streamPos += done;
+
+                if (this.streamPos >= this.length()) {
+                    this.close();
+                }
+            }
+
+            /* an open entry stream keeps its ZipIndex from closing the ZipFile */
+            public synchronized void close() throws IOException {
+                if (this.is != null) {
+                    this.is.close();
+                    this.is = null;
+                }
+            }
+        };
+    }
+
+    public static PagedReader forBuffer(final byte[] buffer) {
+        return new PagedReader(buffer.length) {
+            protected void fill(long pos, byte[] page) {
+                System.arraycopy(buffer, (int)pos, page, 0, page.length);
+            }
+        };
+    }
+}
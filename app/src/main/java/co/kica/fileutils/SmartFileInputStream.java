@@ -4,13 +4,22 @@ import co.kica.fileutils.SmartFile;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class SmartFileInputStream extends InputStream {
-  private static HashMap cache = new HashMap();
+  public static final long DEFAULT_CACHE_BUDGET = 8L * 1024L * 1024L;
+  /* decoded file contents keyed by container, entry, mtime and size, least recently used first */
+  private static LinkedHashMap<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, 0.75F, true);
+  private static long cacheBudget = DEFAULT_CACHE_BUDGET;
+  private static long cacheBytes = 0L;
+  private static long cacheHits = 0L;
+  private static long cacheMisses = 0L;
   private byte[] buffer = null;
   private long byteptr = 0L;
+  private long markptr = 0L;
   private SmartFile file;
   private long size;
 
@@ -38,11 +47,91 @@ public class SmartFileInputStream extends InputStream {
   }
 
   private void precache() {
-    this.buffer = this.file.getBuffer();
-    System.out.println("precache(): sitting on " + this.buffer.length);
+    String var1 = cacheKey(this.file.getContainerPath(), this.file.getSubpath(), this.file.lastModified(), this.size);
+    this.buffer = getCached(var1);
+    if(this.buffer == null) {
+      this.buffer = this.file.getBuffer();
+      System.out.println("precache(): sitting on " + this.buffer.length);
+      putCached(var1, this.buffer);
+    }
+
     this.size = (long)this.buffer.length;
   }
 
+  static String cacheKey(String var0, String var1, long var2, long var4) {
+    return var0 + "\u0000" + var1 + "\u0000" + var2 + "\u0000" + var4;
+  }
+
+  /* shared with VirtualFS so containers inside containers are decoded once too */
+  static byte[] getCached(String var0) {
+    synchronized(cache) {
+      byte[] var1 = cache.get(var0);
+      if(var1 != null) {
+        ++cacheHits;
+      } else {
+        ++cacheMisses;
+      }
+
+      return var1;
+    }
+  }
+
+  static void putCached(String var0, byte[] var1) {
+    synchronized(cache) {
+      if((long)var1.length <= cacheBudget && !cache.containsKey(var0)) {
+        cache.put(var0, var1);
+        cacheBytes += (long)var1.length;
+        trimCache();
+      }
+    }
+  }
+
+  /* drops least recently used entries until the cache fits its budget, call holding the cache lock */
+  private static void trimCache() {
+    Iterator<Map.Entry<String, byte[]>> var0 = cache.entrySet().iterator();
+
+    while(cacheBytes > cacheBudget && var0.hasNext()) {
+      cacheBytes -= (long)var0.next().getValue().length;
+      var0.remove();
+    }
+  }
+
+  public static void setCacheBudget(long var0) {
+    synchronized(cache) {
+      cacheBudget = Math.max(0L, var0);
+      trimCache();
+    }
+  }
+
+  public static long getCacheBudget() {
+    return cacheBudget;
+  }
+
+  public static long getCacheBytes() {
+    synchronized(cache) {
+      return cacheBytes;
+    }
+  }
+
+  public static long getCacheHits() {
+    synchronized(cache) {
+      return cacheHits;
+    }
+  }
+
+  public static long getCacheMisses() {
+    synchronized(cache) {
+      return cacheMisses;
+    }
+  }
+
+  public static void clearCache() {
+    synchronized(cache) {
+      cache.clear();
+      cacheBytes = 0L;
+    }
+  }
+
   public int available() {
     return (int)(this.size - this.byteptr);
   }
@@ -62,68 +151,45 @@ public class SmartFileInputStream extends InputStream {
   }
 
   public int read(byte[] var1) throws IOException {
-    int var2;
-    if(this.byteptr >= this.size) {
-      var2 = -1;
-    } else {
-      long var7;
-      if(this.size - this.byteptr >= (long)var1.length) {
-        var7 = (long)var1.length;
-      } else {
-        var7 = this.size - this.byteptr;
-      }
-
-      int var4 = (int)var7;
-      System.out.println("Requested " + var1.length + ", can give it " + var4);
-      if(var4 == 0) {
-        var2 = -1;
-      } else {
-        byte[] var9 = Arrays.copyOfRange(this.buffer, (int)this.byteptr, (int)(this.byteptr + (long)var4));
-        int var3 = 0;
-        int var5 = var9.length;
-
-        for(var2 = 0; var2 < var5; ++var2) {
-          byte var10000 = var9[var2];
-          var1[var3] = var9[var3];
-          ++var3;
-        }
-
-        this.byteptr += (long)var4;
-        var2 = var4;
-      }
-    }
-
-    return var2;
+    return this.read(var1, 0, var1.length);
   }
 
   public int read(byte[] var1, int var2, int var3) throws IOException {
-    int var4 = var3;
-    if(var3 - var2 >= var1.length) {
-      var4 = var1.length - var2;
-    }
-
-    var3 = var4;
-    if(var4 < 0) {
-      var3 = 0;
+    if(var2 < 0 || var3 < 0 || var3 > var1.length - var2) {
+      throw new IndexOutOfBoundsException();
+    } else if(var3 == 0) {
+      return 0;
+    } else if(this.byteptr >= this.size) {
+      return -1;
+    } else {
+      int var4 = (int)Math.min((long)var3, this.size - this.byteptr);
+      System.arraycopy(this.buffer, (int)this.byteptr, var1, var2, var4);
+      this.byteptr += (long)var4;
+      return var4;
     }
+  }
 
-    var4 = var2;
+  public long skip(long var1) {
+    long var3 = Math.max(0L, Math.min(var1, this.size - this.byteptr));
+    this.byteptr += var3;
+    return var3;
+  }
 
-    int var5;
-    for(var5 = 0; var4 < var2 + var3; ++var5) {
-      int var6 = this.read();
-      if(var6 < 0) {
-        break;
-      }
+  public boolean markSupported() {
+    return true;
+  }
 
-      var1[var5] = (byte)(var6 & 255);
-      ++var4;
-    }
+  public void mark(int var1) {
+    this.markptr = this.byteptr;
+  }
 
-    return var5;
+  /* the unread part of the file, shares the stream's buffer so nothing is copied */
+  public ByteBuffer getByteBuffer() {
+    int var1 = (int)Math.min(this.byteptr, this.size);
+    return ByteBuffer.wrap(this.buffer, var1, (int)this.size - var1).slice().asReadOnlyBuffer();
   }
 
   public void reset() {
-    this.byteptr = 0L;
+    this.byteptr = this.markptr;
   }
 }
@@ -0,0 +1,119 @@
+package co.kica.fileutils;
+
+import co.kica.tap.T64Format;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/*
+ * T64 tape archives.  They stay files in the browser (FileChooser asks which
+ * program to load) but paths can go through them to a single program, which
+ * reads as a PRG with its load address.
+ */
+public class T64Container implements Container {
+    private ContainerSource source;
+    private T64Format t64 = null;
+
+    public static class Provider implements ContainerProvider {
+        public boolean accepts(String name) {
+            return name.toLowerCase().endsWith(".t64");
+        }
+
+        public boolean isFolder() {
+            return false;
+        }
+
+        public Container mount(ContainerSource source) {
+            return new T64Container(source);
+        }
+    }
+
+    public T64Container(ContainerSource source) {
+        this.source = source;
+    }
+
+    private synchronized T64Format getT64() throws IOException {
+        if (this.source.getFile() != null) {
+            return T64Format.open(this.source.getFile().getAbsolutePath(), false);
+        }
+
+        if (this.t64 == null) {
+            this.t64 = new T64Format(this.source.getName(), this.source.read());
+        }
+        return this.t64;
+    }
+
+    private T64Format.DirEntry entry(String path) {
+        try {
+            T64Format t64 = this.getT64();
+            if (!t64.validHeader()) {
+                return null;
+            }
+
+            for (T64Format.DirEntry d : t64.getDir()) {
+                if (d.getFilename().replaceAll("[ ]+$", "").equals(path)) {
+                    return d;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public SmartFile.SmartType getType() {
+        return SmartFile.SmartType.T64FILE;
+    }
+
+    public boolean exists(String path) {
+        return path.length() == 0 || this.entry(path) != null;
+    }
+
+    public boolean isDirectory(String path) {
+        return path.length() == 0;
+    }
+
+    public long length(String path) {
+        T64Format.DirEntry d = this.entry(path);
+        return d == null ? 0L : (long)(d.getSize() + 2);
+    }
+
+    public String[] list(String path) {
+        ArrayList<String> names = new ArrayList<String>();
+        if (path.length() == 0) {
+            try {
+                T64Format t64 = this.getT64();
+                if (t64.validHeader()) {
+                    for (T64Format.DirEntry d : t64.getDir()) {
+                        names.add(d.getFilename().replaceAll("[ ]+$", ""));
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    public byte[] read(String path) throws IOException {
+        T64Format.DirEntry d = this.entry(path);
+        if (d == null) {
+            throw new FileNotFoundException(this.source.getPath() + "/" + path);
+        }
+
+        byte[] prog = d.getProgramData();
+        byte[] data = new byte[prog.length + 2];
+        data[0] = (byte)(d.getStart() % 256);
+        data[1] = (byte)(d.getStart() / 256);
+        System.arraycopy(prog, 0, data, 2, prog.length);
+        return data;
+    }
+
+    public PagedReader open(String path) throws IOException {
+        return PagedReader.forBuffer(this.read(path));
+    }
+
+    public synchronized void close() {
+        this.t64 = null;
+    }
+}
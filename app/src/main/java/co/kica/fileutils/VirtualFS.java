@@ -0,0 +1,142 @@
+package co.kica.fileutils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Mounts containers for SmartFile.  A path is split into the physical file it
+ * starts with and a subpath, which is walked one name at a time, mounting each
+ * container it passes through, so zips inside zips and gzipped tapes inside
+ * zips resolve like any other path.  Mounted containers are kept by path and
+ * closed when they are evicted or their physical file's mtime changes.
+ */
+public class VirtualFS {
+    public static final int MAX_MOUNTED = 16;
+
+    private static ArrayList<ContainerProvider> providers = new ArrayList<ContainerProvider>();
+    private static LinkedHashMap<String, Mount> mounts = new LinkedHashMap<String, Mount>(MAX_MOUNTED, 0.75F, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, Mount> eldest) {
+            if (this.size() > MAX_MOUNTED) {
+                eldest.getValue().container.close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /* a mounted container and the physical mtime it was mounted at */
+    private static class Mount {
+        private Container container;
+        private long modified;
+
+        private Mount(Container container, long modified) {
+            this.container = container;
+            this.modified = modified;
+        }
+    }
+
+    static {
+        register(new ZipContainer.Provider());
+        register(new T64Container.Provider());
+        register(new GzipContainer.Provider());
+    }
+
+    /* where a path ended up: the innermost container and the path inside it */
+    public static class Resolved {
+        private Container container;
+        private String path;
+
+        private Resolved(Container container, String path) {
+            this.container = container;
+            this.path = path;
+        }
+
+        public Container getContainer() {
+            return this.container;
+        }
+
+        public String getPath() {
+            return this.path;
+        }
+    }
+
+    public static void register(ContainerProvider provider) {
+        synchronized (providers) {
+            providers.add(provider);
+        }
+    }
+
+    public static ContainerProvider providerFor(String name) {
+        synchronized (providers) {
+            for (ContainerProvider p : providers) {
+                if (p.accepts(name)) {
+                    return p;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Container mount(ContainerProvider provider, ContainerSource source) {
+        String key = source.getPath();
+        synchronized (mounts) {
+            Mount m = mounts.get(key);
+            if (m != null && m.modified == source.lastModified()) {
+                return m.container;
+            }
+            if (m != null) {
+                m.container.close();
+            }
+
+            Container c = provider.mount(source);
+            mounts.put(key, new Mount(c, source.lastModified()));
+            return c;
+        }
+    }
+
+    /*
+     * Walks subpath from the physical file.  Returns null if the physical
+     * file isn't mounted and there's no subpath, i.e. it's a plain file or
+     * folder.  A container at the very end of the path is only mounted if
+     * it's browsed as a folder.
+     */
+    public static Resolved resolve(File physical, String subpath) {
+        Container c = null;
+        String inner = "";
+
+        ContainerProvider p = physical.isFile() ? providerFor(physical.getName()) : null;
+        if (p != null && (p.isFolder() || subpath.length() > 0)) {
+            c = mount(p, new ContainerSource(physical));
+        }
+
+        if (c == null) {
+            return subpath.length() == 0 ? null : new Resolved(null, subpath);
+        }
+
+        String root = physical.getAbsolutePath();
+        String walked = "";
+        String[] parts = subpath.split(File.separator);
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i].length() == 0) {
+                continue;
+            }
+
+            String next = inner.length() == 0 ? parts[i] : inner + "/" + parts[i];
+            walked = walked.length() == 0 ? parts[i] : walked + File.separator + parts[i];
+            p = providerFor(parts[i]);
+
+            if (p != null && (p.isFolder() || i < parts.length - 1) && c.exists(next) && !c.isDirectory(next)) {
+                c = mount(p, new ContainerSource(root, walked, c, next, physical.lastModified()));
+                inner = "";
+            } else {
+                inner = next;
+            }
+        }
+
+        return new Resolved(c, inner);
+    }
+}
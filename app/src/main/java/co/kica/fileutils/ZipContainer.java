@@ -0,0 +1,107 @@
+package co.kica.fileutils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/*
+ * Zip archives, browsed as folders.  Physical archives use the shared
+ * ZipIndex, archives inside other containers are indexed in memory.
+ */
+public class ZipContainer implements Container {
+    private ContainerSource source;
+    private ZipIndex index = null;
+
+    public static class Provider implements ContainerProvider {
+        public boolean accepts(String name) {
+            return name.toLowerCase().endsWith(".zip");
+        }
+
+        public boolean isFolder() {
+            return true;
+        }
+
+        public Container mount(ContainerSource source) {
+            return new ZipContainer(source);
+        }
+    }
+
+    public ZipContainer(ContainerSource source) {
+        this.source = source;
+    }
+
+    private synchronized ZipIndex getIndex() throws IOException {
+        if (this.source.getFile() != null) {
+            return ZipIndex.open(this.source.getFile());
+        }
+
+        if (this.index == null) {
+            this.index = new ZipIndex(this.source.read());
+        }
+        return this.index;
+    }
+
+    // a broken archive is an empty folder
+    private ZipIndex.Node lookup(String path) {
+        try {
+            return this.getIndex().lookup(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public SmartFile.SmartType getType() {
+        return SmartFile.SmartType.ZIPFILE;
+    }
+
+    public boolean exists(String path) {
+        return path.length() == 0 || this.lookup(path) != null;
+    }
+
+    public boolean isDirectory(String path) {
+        ZipIndex.Node node = this.lookup(path);
+        return path.length() == 0 || (node != null && node.isDirectory());
+    }
+
+    public long length(String path) {
+        ZipIndex.Node node = this.lookup(path);
+        return node == null ? 0L : node.getSize();
+    }
+
+    public String[] list(String path) {
+        ArrayList<String> names = new ArrayList<String>();
+        ZipIndex.Node node = this.lookup(path);
+        if (node != null) {
+            Iterator<ZipIndex.Node> it = node.getChildren().iterator();
+            while (it.hasNext()) {
+                names.add(it.next().getName());
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    public byte[] read(String path) throws IOException {
+        ZipIndex index = this.getIndex();
+        ZipIndex.Node node = index.lookup(path);
+        if (node == null || node.getEntry() == null) {
+            throw new FileNotFoundException(this.source.getPath() + "/" + path);
+        }
+        return index.read(node.getEntry());
+    }
+
+    public PagedReader open(String path) throws IOException {
+        ZipIndex index = this.getIndex();
+        ZipIndex.Node node = index.lookup(path);
+        if (node == null || node.getEntry() == null) {
+            throw new FileNotFoundException(this.source.getPath() + "/" + path);
+        }
+        return PagedReader.forZipEntry(index, node.getEntry());
+    }
+
+    // physical archives are closed by ZipIndex when they leave its cache
+    public synchronized void close() {
+        this.index = null;
+    }
+}
@@ -0,0 +1,359 @@
+package co.kica.fileutils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/*
+ * Central directory of a zip archive, read once and shared by every SmartFile
+ * pointing into it.  Indexes are dropped when the archive's mtime or length
+ * changes, or when more than MAX_CACHED archives are open; a dropped index
+ * closes its archive once the last stream reading from it is closed.
+ */
+public class ZipIndex {
+    public static final int MAX_CACHED = 8;
+
+    private static LinkedHashMap<String, ZipIndex> cache = new LinkedHashMap<String, ZipIndex>(MAX_CACHED, 0.75F, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, ZipIndex> eldest) {
+            if (this.size() > MAX_CACHED) {
+                eldest.getValue().retire();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private File file = null;
+    private ZipFile zip = null;
+    private int readers = 0;
+    private boolean retired = false;
+    private byte[] data = null;
+    private HashMap<String, Integer> offsets = null;
+    private long modified;
+    private long length;
+    private ArrayList<ZipEntry> entries = new ArrayList<ZipEntry>();
+    private HashMap<String, ZipEntry> byName = new HashMap<String, ZipEntry>();
+    private Node root = new Node("", "");
+
+    /*
+     * A file or folder in the archive.  Folders that only exist as part of
+     * other entries' names get a node with no entry of their own.
+     */
+    public static class Node {
+        private String name;
+        private String path;
+        private ZipEntry entry = null;
+        private LinkedHashMap<String, Node> children = null;
+
+        private Node(String name, String path) {
+            this.name = name;
+            this.path = path;
+        }
+
+        private Node child(String name) {
+            if (this.children == null) {
+                this.children = new LinkedHashMap<String, Node>();
+            }
+
+            Node node = this.children.get(name);
+            if (node == null) {
+                node = new Node(name, this.path.length() == 0 ? name : this.path + "/" + name);
+                this.children.put(name, node);
+            }
+            return node;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /* path inside the archive, without a trailing slash */
+        public String getPath() {
+            return this.path;
+        }
+
+        public ZipEntry getEntry() {
+            return this.entry;
+        }
+
+        public long getSize() {
+            return this.entry == null ? 0L : Math.max(0L, this.entry.getSize());
+        }
+
+        // empty entries have always been browsed as folders
+        public boolean isDirectory() {
+            return this.children != null || this.entry == null || this.entry.isDirectory() || this.entry.getSize() == 0L;
+        }
+
+        /* direct children in central directory order */
+        public Collection<Node> getChildren() {
+            return this.children == null ? Collections.<Node>emptyList() : this.children.values();
+        }
+    }
+
+    private ZipIndex(File file) throws IOException {
+        this.file = file;
+        this.modified = file.lastModified();
+        this.length = file.length();
+        this.zip = new ZipFile(file);
+
+        Enumeration<? extends ZipEntry> e = this.zip.entries();
+        while (e.hasMoreElements()) {
+            this.add(e.nextElement());
+        }
+    }
+
+    /*
+     * Index of an archive held in memory, e.g. a zip inside another container.
+     * Only the central directory is parsed, entries are inflated when read.
+     */
+    public ZipIndex(byte[] data) throws IOException {
+        this.data = data;
+        this.length = data.length;
+        this.offsets = new HashMap<String, Integer>();
+
+        try {
+            int eocd = -1;
+            for (int i = data.length - 22; i >= 0 && i >= data.length - 22 - 0xffff; i--) {
+                if (le32(i) == 0x06054b50L) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd == -1) {
+                throw new ZipException("no central directory");
+            }
+
+            int count = le16(eocd + 10);
+            int pos = (int)le32(eocd + 16);
+            for (int i = 0; i < count; i++) {
+                if (le32(pos) != 0x02014b50L) {
+                    throw new ZipException("bad central directory entry");
+                }
+
+                int method = le16(pos + 10);
+                long compressedSize = le32(pos + 20);
+                long size = le32(pos + 24);
+                int nameLen = le16(pos + 28);
+                int local = (int)le32(pos + 42);
+                String name = new String(data, pos + 46, nameLen, "UTF-8");
+                pos += 46 + nameLen + le16(pos + 30) + le16(pos + 32);
+
+                if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+                    System.out.println("Skipping " + name + ", unsupported compression method " + method);
+                    continue;
+                }
+
+                ZipEntry entry = new ZipEntry(name);
+                entry.setMethod(method);
+                entry.setCompressedSize(compressedSize);
+                entry.setSize(size);
+                this.offsets.put(name, local + 30 + le16(local + 26) + le16(local + 28));
+                this.add(entry);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ZipException("truncated zip");
+        }
+    }
+
+    private int le16(int pos) {
+        return (this.data[pos] & 0xff) | ((this.data[pos + 1] & 0xff) << 8);
+    }
+
+    private long le32(int pos) {
+        return (long)le16(pos) | ((long)le16(pos + 2) << 16);
+    }
+
+    private void add(ZipEntry entry) {
+        this.entries.add(entry);
+        this.byName.put(entry.getName(), entry);
+
+        Node node = this.root;
+        for (String part : entry.getName().split("/")) {
+            if (part.length() > 0) {
+                node = node.child(part);
+            }
+        }
+        if (node != this.root) {
+            node.entry = entry;
+        }
+    }
+
+    /* returns the index for the archive, reading its central directory only if it is new or changed */
+    public static ZipIndex open(File file) throws IOException {
+        String key = file.getAbsolutePath();
+
+        synchronized (cache) {
+            ZipIndex index = cache.get(key);
+            if (index != null && index.modified == file.lastModified() && index.length == file.length()) {
+                return index;
+            }
+        }
+
+        ZipIndex index = new ZipIndex(file);
+        ZipIndex old;
+        synchronized (cache) {
+            old = cache.put(key, index);
+        }
+        if (old != null) {
+            old.retire();
+        }
+        return index;
+    }
+
+    /* no longer cached, the archive is closed now or when its last stream is */
+    private synchronized void retire() {
+        this.retired = true;
+        if (this.readers == 0) {
+            this.closeZip();
+        }
+    }
+
+    private synchronized void readerDone() {
+        this.readers--;
+        if (this.retired && this.readers == 0) {
+            this.closeZip();
+        }
+    }
+
+    private void closeZip() {
+        if (this.zip != null) {
+            try {
+                this.zip.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.zip = null;
+        }
+    }
+
+    /* a stream on the archive file, counted so a retired index knows when it can close the file */
+    private synchronized InputStream openStream(ZipEntry entry) throws IOException {
+        if (this.zip == null) {
+            // retired, but a SmartFile holding on to this index is still reading
+            if (this.file.lastModified() != this.modified || this.file.length() != this.length) {
+                throw new ZipException(this.file.getPath() + " has changed");
+            }
+            this.zip = new ZipFile(this.file);
+        }
+
+        InputStream is = this.zip.getInputStream(entry);
+        if (is == null) {
+            throw new ZipException("no such entry " + entry.getName());
+        }
+        this.readers++;
+
+        return new FilterInputStream(is) {
+            private boolean closed = false;
+
+            public void close() throws IOException {
+                if (!this.closed) {
+                    this.closed = true;
+                    super.close();
+                    ZipIndex.this.readerDone();
+                }
+            }
+        };
+    }
+
+    /* like ZipFile.getEntry, a directory is found with or without its trailing slash */
+    public ZipEntry getEntry(String name) {
+        ZipEntry entry = this.byName.get(name);
+        if (entry == null && !name.endsWith("/")) {
+            entry = this.byName.get(name + "/");
+        }
+        return entry;
+    }
+
+    /* the file or folder at path, null if there is none; "" is the archive itself */
+    public Node lookup(String path) {
+        Node node = this.root;
+        for (String part : path.split("/")) {
+            if (part.length() > 0) {
+                if (node.children == null) {
+                    return null;
+                }
+                node = node.children.get(part);
+                if (node == null) {
+                    return null;
+                }
+            }
+        }
+        return node;
+    }
+
+    /* entries in central directory order */
+    public List<ZipEntry> entries() {
+        return this.entries;
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    /* the inflated contents of entry, read straight from its position in the archive */
+    public InputStream getInputStream(ZipEntry entry) throws IOException {
+        if (this.file != null) {
+            return this.openStream(entry);
+        }
+
+        Integer start = this.offsets.get(entry.getName());
+        if (start == null) {
+            throw new ZipException("no such entry " + entry.getName());
+        }
+
+        int len = (int)Math.min(entry.getCompressedSize(), this.data.length - start);
+        if (entry.getMethod() == ZipEntry.STORED) {
+            return new ByteArrayInputStream(this.data, start, len);
+        }
+
+        // raw inflate wants one byte past the compressed data, the central directory follows so there always is one
+        len = Math.min(len + 1, this.data.length - start);
+        // an Inflater passed in isn't ended by close(), its native memory would wait for finalization
+        final Inflater inf = new Inflater(true);
+        return new InflaterInputStream(new ByteArrayInputStream(this.data, start, len), inf) {
+            public void close() throws IOException {
+                super.close();
+                inf.end();
+            }
+        };
+    }
+
+    /* inflates a single entry, seeking straight to it */
+    public byte[] read(ZipEntry entry) throws IOException {
+        InputStream is = this.getInputStream(entry);
+        byte[] data = new byte[(int)Math.max(0L, entry.getSize())];
+        int pos = 0;
+
+        try {
+            while (pos < data.length) {
+                int len = is.read(data, pos, data.length - pos);
+                if (len == -1) {
+                    break;
+                }
+                pos += len;
+            }
+        } finally {
+            is.close();
+        }
+
+        return data;
+    }
+}
@@ -14,6 +14,7 @@ import java.lang.Math.*;
 import co.kica.tap.IntermediateBlockRepresentation.SampleTable;
 
 public class AtariTape extends GenericTape {
+	public static final byte[] TAPE_MAGIC = "FUJI".getBytes();
 	
 	public class CASChunk {
 		public char[] id = {' ', ' ', ' ', ' '};
@@ -82,7 +83,7 @@ public class AtariTape extends GenericTape {
 				// reset and store into header
 				Header.reset();
 				Header.write(buff);
-				byte[] magic = "FUJI".getBytes();
+				byte[] magic = TAPE_MAGIC;
 				if (Arrays.equals(getMAGIC(),magic)) {
 					System.out.println("*** File is a valid Atari/FUJI File by the looks of it.");
 					setValid(true);
@@ -201,7 +202,7 @@ public class AtariTape extends GenericTape {
 	}
 	
 	public void writeAudioStreamData( String path, String base ) {
-		IntermediateBlockRepresentation w = new IntermediateBlockRepresentation(path, base);
+		IntermediateBlockRepresentation w = newWriter(path, base);
 		
 		// init needed sample tables
 		markTone = w.new SampleTable(44100, true, 1, MARK_TONE, 0.99);
@@ -214,7 +215,12 @@ public class AtariTape extends GenericTape {
 		double duration = 0;
 		double cnv = 1.0;
 		
+		renderStarted();
+		
 		while (hasData()) {
+			checkCancelled(w);
+			int blockStart = dataPos;
+			int blockSamples = w.getTotalBytes();
 			CASChunk chunk = getNextChunk(raw);
 			//System.out.println("Got a chunk with ID "+Integer.toHexString(chunk.id)+" with size "+chunk.chunkData.length+" bytes.");
 			
@@ -231,9 +237,13 @@ public class AtariTape extends GenericTape {
 			
 			// store last block for &101
 			lastChunk = chunk;
+			
+			blockRendered(dataPos - blockStart, w.getTotalBytes() - blockSamples);
 		}
 		
+		checkCancelled(w);
 		w.done();
+		renderFinished();
 		
 		//return w;
 	}
@@ -0,0 +1,274 @@
+package co.kica.tap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import co.kica.fileutils.SmartFile;
+
+/*
+ * Renders every tape under a directory, ZIP or T64 from the command line,
+ * no Android needed:
+ *
+ *   java -cp classes co.kica.tap.BatchRender [options] source...
+ *
+ *   -o dir       output directory (default ./render)
+ *   -j n         tapes rendered at once (default one per core)
+ *   -r rate      sample rate for TZX and Spectrum TAP, 44100 or 22050
+ *   -l model     PRG/T64 loader model, -1 ROM, 0-2 turbo (default 1)
+ *   -a           accelerated Spectrum TAP blocks
+ *   -wav         also write a WAV file for each tape
+ *   -16          16 bit WAV files instead of 8 bit
+ *   -raw         plain PCM block files instead of BlockCodec ones
+ *
+ * Each tape is written as an IBR (manifest plus blocks) named after its
+ * path, a summary of every tape with its format and timing goes to
+ * summary.txt in the output directory.
+ */
+public class BatchRender {
+
+	public static final String[] TAPE_EXTS = { ".tap", ".tzx", ".cdt", ".uef", ".cas", ".prg", ".p00", ".t64" };
+
+	private File outputDir = new File("render");
+	private int jobs = Runtime.getRuntime().availableProcessors();
+	private int sampleRate = 44100;
+	private int loaderModel = 1;
+	private boolean zxAccelerated = false;
+	private boolean wav = false;
+	private int wavBits = 8;
+
+	private HashSet<String> names = new HashSet<String>();
+
+	/* one tape, or one program of a T64 */
+	public static class Result {
+		public String path;
+		public int index;
+		public String name;
+		public String format = "";
+		public boolean ok = false;
+		public long millis = 0;
+		public int blocks = 0;
+		public long samples = 0;
+		public String error = "";
+	}
+
+	public static void main( String[] args ) {
+		BatchRender b = new BatchRender();
+		ArrayList<String> sources = new ArrayList<String>();
+
+		for (int i=0; i<args.length; i++) {
+			String a = args[i];
+			if (a.equals("-o") && i+1 < args.length) {
+				b.outputDir = new File(args[++i]);
+			} else if (a.equals("-j") && i+1 < args.length) {
+				b.jobs = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (a.equals("-r") && i+1 < args.length) {
+				b.sampleRate = Integer.parseInt(args[++i]);
+			} else if (a.equals("-l") && i+1 < args.length) {
+				b.loaderModel = Integer.parseInt(args[++i]);
+			} else if (a.equals("-a")) {
+				b.zxAccelerated = true;
+			} else if (a.equals("-wav")) {
+				b.wav = true;
+			} else if (a.equals("-16")) {
+				b.wavBits = 16;
+			} else if (a.equals("-raw")) {
+				IntermediateBlockRepresentation.setCompressBlocks(false);
+			} else if (a.startsWith("-")) {
+				usage();
+				return;
+			} else {
+				sources.add(a);
+			}
+		}
+
+		if (sources.size() == 0) {
+			usage();
+			return;
+		}
+
+		List<Result> results = b.run(sources);
+		int failed = 0;
+		for (Result r : results) {
+			if (!r.ok) {
+				failed++;
+			}
+		}
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	private static void usage() {
+		System.out.println("usage: BatchRender [-o dir] [-j jobs] [-r rate] [-l model] [-a] [-wav] [-16] [-raw] source...");
+	}
+
+	public List<Result> run( List<String> sources ) {
+		outputDir.mkdirs();
+
+		ArrayList<Result> todo = new ArrayList<Result>();
+		for (String s : sources) {
+			collect(new SmartFile(s), todo);
+		}
+		System.out.println("*** "+todo.size()+" tapes to render with "+jobs+" workers");
+
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(jobs);
+		ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+		for (final Result r : todo) {
+			pending.add(pool.submit(new Runnable() {
+				public void run() {
+					render(r);
+				}
+			}));
+		}
+		for (Future<?> f : pending) {
+			try {
+				f.get();
+			} catch (Exception e) {
+				// render() reports its own failures
+				e.printStackTrace();
+			}
+		}
+		pool.shutdown();
+		try {
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		report(todo, (System.nanoTime() - start) / 1000000);
+		return todo;
+	}
+
+	/* adds the tapes in f, looking inside directories, ZIPs and T64s */
+	private void collect( SmartFile f, List<Result> todo ) {
+		if (f.isDirectory()) {
+			SmartFile[] list = f.listFiles();
+			if (list != null) {
+				for (SmartFile c : list) {
+					collect(c, todo);
+				}
+			}
+			return;
+		}
+
+		String lc = f.getName().toLowerCase().replaceFirst("[.]gz$", "");
+		boolean tape = false;
+		for (String ext : TAPE_EXTS) {
+			tape |= lc.endsWith(ext);
+		}
+		if (!tape) {
+			return;
+		}
+
+		if (lc.endsWith(".t64")) {
+			T64Format t64 = T64Format.open(f.getPath(), true);
+			if (t64.validHeader()) {
+				for (int i=0; i<t64.getDir().size(); i++) {
+					todo.add(newResult(f.getPath(), i));
+				}
+				return;
+			}
+		}
+		todo.add(newResult(f.getPath(), 0));
+	}
+
+	private Result newResult( String path, int index ) {
+		Result r = new Result();
+		r.path = path;
+		r.index = index;
+
+		String name = path.replaceFirst("^.*[/]", "").replaceAll("[^A-Za-z0-9.-]+", "_");
+		if (path.toLowerCase().endsWith(".t64")) {
+			name = name + "_" + index;
+		}
+		synchronized (names) {
+			String unique = name;
+			for (int n=2; names.contains(unique); n++) {
+				unique = name + "_" + n;
+			}
+			names.add(unique);
+			r.name = unique;
+		}
+		return r;
+	}
+
+	private void render( Result r ) {
+		long start = System.nanoTime();
+
+		try {
+			FormatRegistry.Format format = FormatRegistry.detect(r.path);
+			r.format = format.getName();
+
+			GenericTape tape = format.create(sampleRate);
+			if (tape instanceof ZXTAP) {
+				((ZXTAP)tape).setAccelerated(zxAccelerated);
+			}
+			if (tape instanceof C64Program) {
+				((C64Program)tape).setIdx(r.index);
+				((C64Program)tape).setLoadModel(loaderModel);
+			}
+
+			tape.Load(r.path);
+			if (!tape.isValid()) {
+				r.error = "not a valid "+r.format+" tape";
+			} else {
+				String out = outputDir.getPath();
+				tape.writeAudioStreamData(out, r.name);
+
+				IntermediateBlockRepresentation ibr = new IntermediateBlockRepresentation(out, r.name);
+				r.blocks = ibr.getTotalBlocks();
+				r.samples = ibr.getLength();
+				if (wav) {
+					WavExporter exporter = new WavExporter(ibr);
+					exporter.setBitsPerSample(wavBits);
+					exporter.export(new File(outputDir, r.name+".wav"));
+				}
+				r.ok = true;
+			}
+		} catch (Exception e) {
+			r.error = e.toString();
+		}
+
+		r.millis = (System.nanoTime() - start) / 1000000;
+		System.out.println((r.ok ? "ok   " : "FAIL ")+r.millis+"ms "+r.format+" "+r.path+(r.index > 0 ? " #"+r.index : "")+(r.ok ? "" : " ("+r.error+")"));
+	}
+
+	private void report( List<Result> results, long totalMillis ) {
+		int ok = 0;
+		long renderMillis = 0;
+		long samples = 0;
+		for (Result r : results) {
+			if (r.ok) {
+				ok++;
+				samples += r.samples;
+			}
+			renderMillis += r.millis;
+		}
+
+		String summary = ok+" of "+results.size()+" tapes rendered in "+totalMillis+"ms ("+renderMillis+"ms of rendering), "+samples+" samples";
+
+		try {
+			PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(outputDir, "summary.txt")), "UTF-8"));
+			w.println("# status\tms\tformat\tblocks\tsamples\toutput\tsource\tindex\terror");
+			for (Result r : results) {
+				w.println((r.ok ? "ok" : "fail")+"\t"+r.millis+"\t"+r.format+"\t"+r.blocks+"\t"+r.samples+"\t"+r.name+"\t"+r.path+"\t"+r.index+"\t"+r.error);
+			}
+			w.println("# "+summary);
+			w.close();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+
+		System.out.println("*** "+summary);
+	}
+}
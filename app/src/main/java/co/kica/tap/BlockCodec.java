@@ -0,0 +1,443 @@
+package co.kica.tap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/*
+ * Compact storage for rendered blocks.  A block is almost all runs of two
+ * levels, and pilot tones and bit cycles are the same few runs over and over,
+ * so the samples are stored as operations:
+ *
+ *   0x00-0x3f  literal, (op + 1) sample bytes follow
+ *   0x40-0x7f  run of (op & 0x3f) + 1 samples, level byte follows
+ *   0x80       long run, varint length and level byte follow
+ *   0x81       copy, varint distance and varint length follow, repeats the
+ *              samples distance back (overlapping, so a period repeats)
+ *
+ * followed by the number of samples as a 4 byte little endian trailer.
+ * Varints are 7 bits a byte, low bits first, high bit set if more follow.
+ * Decoding gives back exactly the samples written.
+ */
+public class BlockCodec {
+
+	public static final String EXT = "rle_u8";
+
+	/* copies reach at most this far back, so a streaming decoder needs a bounded window */
+	public static final int MAX_DISTANCE = 32768;
+
+	private static final int OP_RUN = 0x40;
+	private static final int OP_LONG_RUN = 0x80;
+	private static final int OP_COPY = 0x81;
+	private static final int MAX_SHORT = 64;
+
+	/* runs this short are cheaper stored as literals (sine tables, noise) */
+	private static final int LITERAL_RUN = 2;
+
+	/* longest group of runs looked for as a repeat */
+	private static final int MAX_PERIOD = 8;
+
+	public static boolean isEncoded( String source ) {
+		return source.endsWith("."+EXT);
+	}
+
+	/*
+	 * Encodes samples as they are written.  Samples are split into runs, a run
+	 * is held back until it's clear whether it starts a repeat of the runs
+	 * before it, then written out as a run, a literal or part of a copy.
+	 */
+	public static class Encoder extends OutputStream {
+
+		private OutputStream out;
+		private long samples = 0;
+
+		private int level = -1;
+		private int runLength = 0;
+
+		// the last 2*MAX_PERIOD finished runs, newest at head-1
+		private int[] levels = new int[2*MAX_PERIOD];
+		private int[] lengths = new int[2*MAX_PERIOD];
+		private int head = 0;
+		private int filled = 0;
+		private int pending = 0;	// newest runs not written yet
+
+		private int period = 0;		// runs being repeated, 0 if not in a copy
+		private int copyDistance = 0;
+		private long copyLength = 0;
+
+		private byte[] literal = new byte[MAX_SHORT];
+		private int literalLength = 0;
+
+		public Encoder( OutputStream out ) {
+			this.out = out;
+		}
+
+		@Override
+		public void write( int b ) throws IOException {
+			samples++;
+			b &= 0xff;
+			if (b == level) {
+				runLength++;
+				return;
+			}
+			if (runLength > 0) {
+				endRun();
+			}
+			level = b;
+			runLength = 1;
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len ) throws IOException {
+			samples += len;
+			int end = off + len;
+			int i = off;
+			while (i < end) {
+				int v = b[i] & 0xff;
+				if (v != level) {
+					if (runLength > 0) {
+						endRun();
+					}
+					level = v;
+					runLength = 0;
+				}
+				int j = i + 1;
+				while (j < end && (b[j] & 0xff) == v) {
+					j++;
+				}
+				runLength += j - i;
+				i = j;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (runLength > 0) {
+				endRun();
+				runLength = 0;
+			}
+			if (period > 0) {
+				writeCopy();
+			}
+			writeRuns(pending);
+			flushLiteral();
+
+			out.write((int)samples & 0xff);
+			out.write((int)(samples >> 8) & 0xff);
+			out.write((int)(samples >> 16) & 0xff);
+			out.write((int)(samples >> 24) & 0xff);
+			out.close();
+		}
+
+		/* k-th newest finished run, 1 is the newest */
+		private int slot( int k ) {
+			return (head - k + levels.length) % levels.length;
+		}
+
+		private void push( int lvl, int len ) {
+			levels[head] = lvl;
+			lengths[head] = len;
+			head = (head + 1) % levels.length;
+			if (filled < levels.length) {
+				filled++;
+			}
+		}
+
+		/* true if the newest p runs are the same as the p before them */
+		private boolean repeats( int p ) {
+			for (int k=1; k<=p; k++) {
+				int a = slot(k);
+				int b = slot(k + p);
+				if (levels[a] != levels[b] || lengths[a] != lengths[b]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void endRun() throws IOException {
+			if (period > 0) {
+				int s = slot(period);
+				if (levels[s] == level && lengths[s] == runLength) {
+					push(level, runLength);
+					copyLength += runLength;
+					return;
+				}
+				writeCopy();
+			}
+
+			push(level, runLength);
+			pending++;
+
+			for (int p=1; p<=MAX_PERIOD && p<=pending && 2*p<=filled; p++) {
+				if (repeats(p)) {
+					int distance = 0;
+					for (int k=1; k<=p; k++) {
+						distance += lengths[slot(k)];
+					}
+					if (distance <= MAX_DISTANCE) {
+						// what came before is written as is, the repeat becomes a copy
+						writeRuns(pending - p);
+						pending = 0;
+						period = p;
+						copyDistance = distance;
+						copyLength = distance;
+						return;
+					}
+				}
+			}
+
+			if (pending > MAX_PERIOD) {
+				writeRuns(pending - MAX_PERIOD);
+			}
+		}
+
+		/* writes the oldest n pending runs */
+		private void writeRuns( int n ) throws IOException {
+			for (int k=pending; k>pending-n; k--) {
+				int s = slot(k);
+				writeRun(levels[s], lengths[s]);
+			}
+			pending -= n;
+		}
+
+		private void writeRun( int lvl, int len ) throws IOException {
+			if (len <= LITERAL_RUN) {
+				for (int i=0; i<len; i++) {
+					if (literalLength == literal.length) {
+						flushLiteral();
+					}
+					literal[literalLength++] = (byte)lvl;
+				}
+				return;
+			}
+			flushLiteral();
+			if (len <= MAX_SHORT) {
+				out.write(OP_RUN | (len - 1));
+			} else {
+				out.write(OP_LONG_RUN);
+				writeVarint(len);
+			}
+			out.write(lvl);
+		}
+
+		private void writeCopy() throws IOException {
+			flushLiteral();
+			out.write(OP_COPY);
+			writeVarint(copyDistance);
+			writeVarint(copyLength);
+			period = 0;
+		}
+
+		private void flushLiteral() throws IOException {
+			if (literalLength > 0) {
+				out.write(literalLength - 1);
+				out.write(literal, 0, literalLength);
+				literalLength = 0;
+			}
+		}
+
+		private void writeVarint( long v ) throws IOException {
+			while (v >= 0x80) {
+				out.write((int)(v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			out.write((int)v);
+		}
+	}
+
+	/* decodes a whole encoded block, as read from its file */
+	public static byte[] decode( byte[] in ) throws IOException {
+		if (in.length < 4) {
+			throw new EOFException("Encoded block too short");
+		}
+		int end = in.length - 4;
+		int size = (in[end] & 0xff) | ((in[end+1] & 0xff) << 8) | ((in[end+2] & 0xff) << 16) | ((in[end+3] & 0xff) << 24);
+		byte[] out = new byte[size];
+
+		int pos = 0;
+		int i = 0;
+		try {
+			while (i < end) {
+				int op = in[i++] & 0xff;
+				if (op < OP_RUN) {
+					int n = op + 1;
+					System.arraycopy(in, i, out, pos, n);
+					i += n;
+					pos += n;
+				} else if (op < OP_LONG_RUN) {
+					int n = (op & 0x3f) + 1;
+					Arrays.fill(out, pos, pos + n, in[i++]);
+					pos += n;
+				} else if (op == OP_LONG_RUN) {
+					int n = 0;
+					int shift = 0;
+					int b;
+					do {
+						b = in[i++] & 0xff;
+						n |= (b & 0x7f) << shift;
+						shift += 7;
+					} while ((b & 0x80) != 0);
+					Arrays.fill(out, pos, pos + n, in[i++]);
+					pos += n;
+				} else if (op == OP_COPY) {
+					int distance = 0;
+					int shift = 0;
+					int b;
+					do {
+						b = in[i++] & 0xff;
+						distance |= (b & 0x7f) << shift;
+						shift += 7;
+					} while ((b & 0x80) != 0);
+					int n = 0;
+					shift = 0;
+					do {
+						b = in[i++] & 0xff;
+						n |= (b & 0x7f) << shift;
+						shift += 7;
+					} while ((b & 0x80) != 0);
+
+					// each copy doubles what can be copied in one go
+					int from = pos - distance;
+					while (n > 0) {
+						int c = Math.min(n, pos - from);
+						System.arraycopy(out, from, out, pos, c);
+						pos += c;
+						n -= c;
+					}
+				} else {
+					throw new IOException("Bad block operation "+op);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt encoded block");
+		}
+
+		if (pos != size) {
+			throw new IOException("Encoded block decoded to "+pos+" of "+size+" samples");
+		}
+		return out;
+	}
+
+	/*
+	 * Decodes a block a buffer at a time, for when it needn't be in memory all
+	 * at once (WAV export).  length is the size of the encoded file.
+	 */
+	public static class Decoder extends InputStream {
+
+		private static final int WINDOW = 2*MAX_DISTANCE;
+
+		private InputStream in;
+		private long left;			// encoded bytes before the trailer
+		private byte[] window = new byte[WINDOW];
+		private long pos = 0;
+
+		private int op = -1;
+		private long remaining = 0;
+		private int level;
+		private int distance;
+
+		public Decoder( InputStream in, long length ) {
+			this.in = in;
+			this.left = length - 4;
+		}
+
+		private int next() throws IOException {
+			if (left <= 0) {
+				throw new EOFException("Encoded block truncated");
+			}
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Encoded block truncated");
+			}
+			left--;
+			return b;
+		}
+
+		private long varint() throws IOException {
+			long v = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = next();
+				v |= (long)(b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return v;
+		}
+
+		private boolean nextOp() throws IOException {
+			if (left <= 0) {
+				return false;
+			}
+			int o = next();
+			if (o < OP_RUN) {
+				op = 0;
+				remaining = o + 1;
+			} else if (o < OP_LONG_RUN) {
+				op = OP_RUN;
+				remaining = (o & 0x3f) + 1;
+				level = next();
+			} else if (o == OP_LONG_RUN) {
+				op = OP_RUN;
+				remaining = varint();
+				level = next();
+			} else if (o == OP_COPY) {
+				op = OP_COPY;
+				distance = (int)varint();
+				remaining = varint();
+				if (distance <= 0 || distance > MAX_DISTANCE) {
+					throw new IOException("Bad copy distance "+distance);
+				}
+			} else {
+				throw new IOException("Bad block operation "+o);
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException {
+			int n = 0;
+			while (n < len) {
+				if (remaining == 0 && !nextOp()) {
+					break;
+				}
+				int c = (int)Math.min(len - n, remaining);
+				for (int i=0; i<c; i++) {
+					int v;
+					if (op == OP_RUN) {
+						v = level;
+					} else if (op == OP_COPY) {
+						v = window[(int)((pos - distance) % WINDOW)];
+					} else {
+						v = next();
+					}
+					window[(int)(pos % WINDOW)] = (byte)v;
+					b[off + n + i] = (byte)v;
+					pos++;
+				}
+				remaining -= c;
+				n += c;
+			}
+			return (n == 0 && len > 0) ? -1 : n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
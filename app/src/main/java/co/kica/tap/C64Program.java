@@ -30,7 +30,7 @@ public class C64Program extends C64Tape {
 	public void writeAudioStreamData( String path, String base ) {
 		super.writeAudioStreamData( path, base );
 		
-		IntermediateBlockRepresentation w = new IntermediateBlockRepresentation(path, base);
+		IntermediateBlockRepresentation w = newWriter(path, base);
 		w.setLoaderType(this.loadModel);
 		w.commit();
 	}
@@ -13,6 +13,7 @@ import java.nio.ByteOrder;
 import java.util.Arrays;
 
 public class C64Tape extends GenericTape {
+	public static final byte[] TAPE_MAGIC = new byte[] {'C','6','4','-','T','A','P','E','-','R','A','W'};
 	
 	private byte Version;
 	public static final double PULSE_AMPLITUDE = 1;
@@ -50,7 +51,7 @@ public class C64Tape extends GenericTape {
 				// reset and store into header
 				Header.reset();
 				Header.write(buff);
-				byte[] magic = new byte[] {'C','6','4','-','T','A','P','E','-','R','A','W'};
+				byte[] magic = TAPE_MAGIC;
 				if (Arrays.equals(getMAGIC(),magic)) {
 					System.out.println("*** File is a valid TAP by the looks of it.");
 					setValid(true);
@@ -124,7 +125,7 @@ public class C64Tape extends GenericTape {
 	}
 	
 	public void writeAudioStreamData( String path, String base ) {
-		IntermediateBlockRepresentation w = new IntermediateBlockRepresentation(path, base);
+		IntermediateBlockRepresentation w = newWriter(path, base);
 		
 		//Data.reset();
 		byte[] raw = Data.toByteArray();
@@ -134,11 +135,21 @@ public class C64Tape extends GenericTape {
 		double cnv = 1.0;
 		
 		renderPercent = 0f;
+		renderStarted();
+		int blockStart = 0;
+		int blockSamples = w.getTotalBytes();
+		int nextCheck = CHUNK;
 		
 		while (bytesread < Data.size()) {
 			
 			renderPercent = (float)bytesread / (float)raw.length;
 			
+			// turbo loaders can go a long way between silences
+			if (bytesread >= nextCheck) {
+				checkCancelled(w);
+				nextCheck = bytesread + CHUNK;
+			}
+			
 			short p = asByte(raw[bytesread++]);
 			
 			if (p > 0) {
@@ -169,12 +180,26 @@ public class C64Tape extends GenericTape {
 				}
 				System.out.println("Silence duration = "+duration);
 				this.addSilence(w, duration, PULSE_AMPLITUDE);
+				
+				// a silence ends a block
+				checkCancelled(w);
+				blockRendered(bytesread - blockStart, w.getTotalBytes() - blockSamples);
+				blockStart = bytesread;
+				blockSamples = w.getTotalBytes();
+				nextCheck = bytesread + CHUNK;
 			}
 			
 		}
 		
+		if (bytesread > blockStart) {
+			blockRendered(bytesread - blockStart, w.getTotalBytes() - blockSamples);
+		}
+		checkCancelled(w);
+		renderPercent = 1f;
+		
 		// do cue
 		w.done();
+		renderFinished();
 		
 		//return w;
 	}
@@ -0,0 +1,19 @@
+package co.kica.tap;
+
+/*
+ * Shared between whoever starts a render and the renderer.  cancel() can be
+ * called from any thread, the renderer notices at its next block boundary,
+ * throws away what it has written and throws RenderCancelledException.
+ */
+public class CancellationToken {
+
+	private volatile boolean cancelled = false;
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
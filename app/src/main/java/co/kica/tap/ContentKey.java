@@ -0,0 +1,243 @@
+package co.kica.tap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import co.kica.fileutils.SmartFile;
+import co.kica.fileutils.SmartFileInputStream;
+
+/*
+ * Cache keys for rendered tapes: a 128-bit MurmurHash3 (x64 variant) of the
+ * file contents, as 32 hex digits.  Physical files are hashed through a
+ * memory map, files inside containers through the decoded buffer.  Keys are
+ * remembered in a small index file by path, size and mtime so a known tape
+ * isn't hashed again.  There is one ContentKey per index file (forIndex), so
+ * renders running at the same time don't overwrite each other's entries.
+ */
+public class ContentKey {
+
+	public static final int MAX_ENTRIES = 256;
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static HashMap<String, ContentKey> instances = new HashMap<String, ContentKey>();
+
+	private File indexFile;
+	private LinkedHashMap<String, String> index = null;
+
+	private ContentKey( File indexFile ) {
+		this.indexFile = indexFile;
+	}
+
+	/* the shared ContentKey for an index file */
+	public static ContentKey forIndex( File indexFile ) {
+		String path = indexFile.getAbsolutePath();
+		synchronized (instances) {
+			ContentKey k = instances.get(path);
+			if (k == null) {
+				k = new ContentKey(indexFile);
+				instances.put(path, k);
+			}
+			return k;
+		}
+	}
+
+	/* returns the key for the file, hashing it only if it isn't in the index */
+	public String keyFor( String filename ) throws IOException {
+		SmartFile f = new SmartFile(filename);
+		String id = f.getAbsolutePath() + "\t" + f.length() + "\t" + f.lastModified();
+
+		synchronized (this) {
+			loadIndex();
+			String key = index.get(id);
+			if (key != null) {
+				return key;
+			}
+		}
+
+		// hashed outside the lock, another render needn't wait for it
+		String key = hash(f);
+		synchronized (this) {
+			index.put(id, key);
+			saveIndex();
+		}
+		return key;
+	}
+
+	public static String hash( SmartFile f ) throws IOException {
+		if (f.getType() == SmartFile.SmartType.PHYSICAL) {
+			FileInputStream fis = new FileInputStream(f);
+			try {
+				FileChannel ch = fis.getChannel();
+				return hash(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+			} finally {
+				fis.close();
+			}
+		}
+
+		SmartFileInputStream sfis = new SmartFileInputStream(f);
+		try {
+			return hash(sfis.getByteBuffer());
+		} finally {
+			sfis.close();
+		}
+	}
+
+	public static String hash( ByteBuffer data ) {
+		long[] h = murmur3(data, 0);
+		char[] out = new char[32];
+		for (int i=0; i<16; i++) {
+			int b = (int)(h[i / 8] >>> (8 * (i % 8))) & 0xff;
+			out[i*2] = HEX[b >> 4];
+			out[i*2+1] = HEX[b & 0xf];
+		}
+		return new String(out);
+	}
+
+	/* MurmurHash3_x64_128 of the buffer's remaining bytes */
+	public static long[] murmur3( ByteBuffer data, long seed ) {
+		ByteBuffer bb = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+		int len = bb.remaining();
+		long h1 = seed;
+		long h2 = seed;
+
+		while (bb.remaining() >= 16) {
+			long k1 = bb.getLong();
+			long k2 = bb.getLong();
+
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		long k1 = 0;
+		long k2 = 0;
+		int tail = bb.remaining();
+		int base = bb.position();
+		for (int i=tail-1; i>=8; i--) {
+			k2 ^= (long)(bb.get(base + i) & 0xff) << (8 * (i - 8));
+		}
+		for (int i=Math.min(tail, 8)-1; i>=0; i--) {
+			k1 ^= (long)(bb.get(base + i) & 0xff) << (8 * i);
+		}
+		if (tail > 8) {
+			h2 ^= mixK2(k2);
+		}
+		if (tail > 0) {
+			h1 ^= mixK1(k1);
+		}
+
+		h1 ^= len;
+		h2 ^= len;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+
+		return new long[] { h1, h2 };
+	}
+
+	private static long mixK1( long k1 ) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		return k1 * C2;
+	}
+
+	private static long mixK2( long k2 ) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		return k2 * C1;
+	}
+
+	private static long fmix( long k ) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb93fe53ecd53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	/* index lines are key, path, size and mtime separated by tabs, oldest first */
+	private void loadIndex() {
+		if (index != null) {
+			return;
+		}
+
+		index = new LinkedHashMap<String, String>(MAX_ENTRIES, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+
+		if (!indexFile.exists()) {
+			return;
+		}
+
+		try {
+			BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+			String line;
+			while ((line = r.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab > 0) {
+					index.put(line.substring(tab + 1), line.substring(0, tab));
+				}
+			}
+			r.close();
+		} catch (FileNotFoundException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+
+	private void saveIndex() {
+		File tmp = new File(indexFile.getAbsolutePath() + ".tmp");
+
+		try {
+			Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+			Iterator<Map.Entry<String, String>> it = index.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, String> e = it.next();
+				w.write(e.getValue() + "\t" + e.getKey() + "\n");
+			}
+			w.close();
+			if (!tmp.renameTo(indexFile)) {
+				indexFile.delete();
+				tmp.renameTo(indexFile);
+			}
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package co.kica.tap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import co.kica.fileutils.SmartFile;
+
+/*
+ * Picks the tape format for a file by looking at its first few hundred bytes
+ * (inflated first if the file is gzipped) and its name, so only the winning
+ * decoder ever loads it.  Formats are tried in the order they are registered,
+ * a Spectrum .TAP has no magic so it is the fallback.
+ */
+public class FormatRegistry {
+
+	public static final int HEAD_SIZE = 256;
+	public static final int MAX_CACHED = 64;
+
+	public static abstract class Format {
+		private String name;
+
+		public Format( String name ) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/* true if the file looks like this format, head holds the first len bytes */
+		public abstract boolean sniff( byte[] head, int len, String filename );
+
+		/* false if sniff goes by the file name, the same bytes under another name may be another format */
+		public boolean byContent() {
+			return true;
+		}
+
+		public abstract GenericTape create( int sampleRate );
+	}
+
+	private static ArrayList<Format> formats = new ArrayList<Format>();
+	private static Format fallback;
+
+	/* formats already detected by file digest */
+	private static LinkedHashMap<String, Format> detected = new LinkedHashMap<String, Format>(MAX_CACHED, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Format> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+
+	static {
+		register(new Format("C64TAP") {
+			public boolean sniff(byte[] head, int len, String filename) {
+				return startsWith(head, len, C64Tape.TAPE_MAGIC);
+			}
+			public GenericTape create(int sampleRate) {
+				return new C64Tape();
+			}
+		});
+		register(new Format("MSX") {
+			public boolean sniff(byte[] head, int len, String filename) {
+				return startsWith(head, len, MSXTape.TAPE_MAGIC);
+			}
+			public GenericTape create(int sampleRate) {
+				return new MSXTape();
+			}
+		});
+		register(new Format("UEF") {
+			public boolean sniff(byte[] head, int len, String filename) {
+				return startsWith(head, len, UEFTape.TAPE_MAGIC);
+			}
+			public GenericTape create(int sampleRate) {
+				return new UEFTape();
+			}
+		});
+		register(new Format("TZX") {
+			public boolean sniff(byte[] head, int len, String filename) {
+				return startsWith(head, len, TZXTape.TAPE_MAGIC);
+			}
+			public GenericTape create(int sampleRate) {
+				return new TZXTape(sampleRate);
+			}
+		});
+		register(new Format("ATARI") {
+			public boolean sniff(byte[] head, int len, String filename) {
+				return startsWith(head, len, AtariTape.TAPE_MAGIC);
+			}
+			public GenericTape create(int sampleRate) {
+				return new AtariTape();
+			}
+		});
+		register(new Format("PRG") {
+			public boolean sniff(byte[] head, int len, String filename) {
+				String fn = filename.toLowerCase();
+				return fn.contains(".prg") || fn.contains(".t64") || fn.contains(".p00");
+			}
+			public boolean byContent() {
+				return false;
+			}
+			public GenericTape create(int sampleRate) {
+				return new C64Program();
+			}
+		});
+		fallback = new Format("ZXTAP") {
+			public boolean sniff(byte[] head, int len, String filename) {
+				return true;
+			}
+			public boolean byContent() {
+				return false;
+			}
+			public GenericTape create(int sampleRate) {
+				return new ZXTAP(sampleRate);
+			}
+		};
+	}
+
+	public static void register( Format format ) {
+		synchronized (formats) {
+			formats.add(format);
+		}
+	}
+
+	public static Format get( String name ) {
+		synchronized (formats) {
+			for (Format f : formats) {
+				if (f.getName().equals(name)) {
+					return f;
+				}
+			}
+		}
+		return fallback.getName().equals(name) ? fallback : null;
+	}
+
+	public static boolean startsWith( byte[] head, int len, byte[] magic ) {
+		if (len < magic.length) {
+			return false;
+		}
+		for (int i=0; i<magic.length; i++) {
+			if (head[i] != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* the first HEAD_SIZE bytes of the tape data, inflated if the file is gzipped */
+	public static int readHead( String filename, byte[] head ) {
+		SmartFile f = new SmartFile(filename);
+		int len = 0;
+
+		try {
+			len = Math.max(0, f.read(0, head));
+			if (len >= 2 && (head[0] & 0xff) == 0x1f && (head[1] & 0xff) == 0x8b) {
+				byte[] gz = new byte[(int)Math.min(f.length(), 65536)];
+				int gzlen = Math.max(0, f.read(0, gz));
+				InputStream is = new GZIPInputStream(new ByteArrayInputStream(gz, 0, gzlen));
+				len = 0;
+				try {
+					while (len < head.length) {
+						int n = is.read(head, len, head.length - len);
+						if (n == -1) {
+							break;
+						}
+						len += n;
+					}
+				} catch (IOException e) {
+					// a short read of the compressed data, the head is whatever inflated
+				}
+				is.close();
+			}
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		} finally {
+			// a zip entry read only this far would stay open
+			f.close();
+		}
+
+		return len;
+	}
+
+	public static Format detect( String filename ) {
+		byte[] head = new byte[HEAD_SIZE];
+		int len = readHead(filename, head);
+
+		synchronized (formats) {
+			for (Format f : formats) {
+				if (f.sniff(head, len, filename)) {
+					return f;
+				}
+			}
+		}
+		return fallback;
+	}
+
+	/* as detect(filename), remembering formats found by content for files with the same digest */
+	public static Format detect( String filename, String digest ) {
+		if (digest == null) {
+			return detect(filename);
+		}
+
+		synchronized (detected) {
+			Format f = detected.get(digest);
+			if (f != null) {
+				return f;
+			}
+		}
+
+		Format f = detect(filename);
+		if (f.byContent()) {
+			synchronized (detected) {
+				detected.put(digest, f);
+			}
+		}
+		return f;
+	}
+}
@@ -1,12 +1,20 @@
 package co.kica.tap;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
 import co.kica.fileutils.SmartFile;
@@ -22,6 +30,7 @@ public abstract class GenericTape {
 	public final static int tapeStatusBadHeader = 6;
 	
 	public final static int CHUNK = 4096;
+	public final static int MAX_SIZE_HINT = 64*1024*1024;
 	
 	protected String FileName;
 	private String HumanName;
@@ -34,6 +43,14 @@ public abstract class GenericTape {
 	private int dataStartSamplePos;
 	private int dataDurationSamples;
 	private int targetSampleRate = 44100;
+	
+	private RenderListener renderListener = null;
+	private CancellationToken cancellation = null;
+	private boolean discardBlocks = false;
+	private RenderKey renderKey = null;
+	private AtomicLong bytesRendered = new AtomicLong();
+	private AtomicInteger blocksRendered = new AtomicInteger();
+	private AtomicLong samplesRendered = new AtomicLong();
 
 	public GenericTape() {
 		this.Init();
@@ -96,13 +113,34 @@ public abstract class GenericTape {
 	}
 	
 	public boolean isGZIPed( String fn ) {
+		SmartFile f = new SmartFile(fn);
+		
+		if (f.getType() != SmartFile.SmartType.PHYSICAL) {
+			// archive entries still come through the smart file buffer
+			try {
+				byte[] buff = new byte[2];
+				InputStream is = new SmartFileInputStream( f );
+				int len = is.read(buff);
+				is.close();
+				return (len == 2 && buff[0] == 31 && buff[1] == -117);
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+			return false;
+		}
+		
+		// physical files only need the two magic bytes
 		try {
-			byte[] buff = new byte[2];
-			InputStream is = new SmartFileInputStream( fn );
-			int len = is.read(buff);
-			//System.out.println(len+": "+buff[0]+","+buff[1]);
-			is.close();
-			if (buff[0] == 31 && buff[1] == -117) {
+			FileInputStream fis = new FileInputStream( f );
+			FileChannel ch = fis.getChannel();
+			ByteBuffer magic = ByteBuffer.allocate(2);
+			while (magic.hasRemaining() && ch.read(magic) > 0) {
+				// keep reading until we have both bytes or hit eof
+			}
+			fis.close();
+			//System.out.println(magic.position()+": "+magic.get(0)+","+magic.get(1));
+			if (magic.position() == 2 && magic.get(0) == 31 && magic.get(1) == -117) {
 				return true;
 			}
 		} catch (FileNotFoundException e) {
@@ -117,6 +155,35 @@ public abstract class GenericTape {
 		
 	}
 	
+	/*
+	 * Returns the uncompressed size recorded in the gzip trailer (ISIZE), or
+	 * -1 when it can't be read or doesn't look sane. It is only ever used as
+	 * a sizing hint since ISIZE is modulo 2^32 and covers the last member only.
+	 */
+	public int gzipInflatedSize( File f ) {
+		int size = -1;
+		try {
+			RandomAccessFile raf = new RandomAccessFile( f, "r" );
+			try {
+				if (raf.length() >= 18) {
+					ByteBuffer b = ByteBuffer.allocate(4);
+					b.order(ByteOrder.LITTLE_ENDIAN);
+					raf.getChannel().read(b, raf.length()-4);
+					size = b.getInt(0);
+				}
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+		if (size < 0 || size > MAX_SIZE_HINT) {
+			return -1;
+		}
+		return size;
+	}
+	
 	public void Load( String fn ) {
 		
 		this.FileName = fn;
@@ -141,28 +208,8 @@ public abstract class GenericTape {
 		
 		// open the file
 		try {
-			InputStream is = new SmartFileInputStream( fn );
-			
-			byte[] buff = new byte[CHUNK];
-			
-			if (parseHeader(is) == true) {
-				
-				if (this.isHeaderData()) {
-					Data.write( Header.toByteArray() );
-				}
-				
-				int len = is.read(buff);
-				while (len > 0) {
-					Data.write(buff, 0, len);
-					len = is.read(buff);
-				}
-				is.close();
-				System.out.println("*** Read in "+Data.size()+" bytes");
-				setValid(true);
-			} else {
-				setStatus(tapeStatusBadHeader);
-			}
-			
+			InputStream is = new SmartFileInputStream( f );
+			loadStream(is, (int)f.length());
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -174,34 +221,53 @@ public abstract class GenericTape {
 		
 		// open the file
 		try {
-			InputStream is = new GZIPInputStream(new SmartFileInputStream( fn ));
+			SmartFile f = new SmartFile(fn);
+			InputStream src;
+			int sizeHint = -1;
 			
-			byte[] buff = new byte[CHUNK];
-			
-			if (parseHeader(is) == true) {
-				
-				if (this.isHeaderData()) {
-					Data.write( Header.toByteArray() );
-				}
-				
-				int len = is.read(buff);
-				while (len > 0) {
-					Data.write(buff, 0, len);
-					len = is.read(buff);
-				}
-				is.close();
-				System.out.println("*** Read in "+Data.size()+" bytes");
-				setValid(true);
+			if (f.getType() == SmartFile.SmartType.PHYSICAL) {
+				// inflate straight off the disk, the trailer tells us how big Data will get
+				src = new FileInputStream( f );
+				sizeHint = gzipInflatedSize( f );
 			} else {
-				setStatus(tapeStatusBadHeader);
+				src = new SmartFileInputStream( f );
 			}
 			
+			loadStream(new GZIPInputStream(src, CHUNK), sizeHint);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}		
 	}
 	
+	/* parses the header then pulls the remaining stream into Data, presized when the size is known */
+	private void loadStream( InputStream is, int sizeHint ) throws IOException {
+		byte[] buff = new byte[CHUNK];
+		
+		if (parseHeader(is) == true) {
+			
+			if (Data.size() == 0 && sizeHint > 0) {
+				Data = new ByteArrayOutputStream(sizeHint);
+			}
+			
+			if (this.isHeaderData()) {
+				Data.write( Header.toByteArray() );
+			}
+			
+			int len = is.read(buff);
+			while (len > 0) {
+				Data.write(buff, 0, len);
+				len = is.read(buff);
+			}
+			is.close();
+			System.out.println("*** Read in "+Data.size()+" bytes");
+			setValid(true);
+		} else {
+			is.close();
+			setStatus(tapeStatusBadHeader);
+		}
+	}
+	
 	public void Save( String fn ) {
 		try {
 			FileOutputStream os = new FileOutputStream( fn );
@@ -277,6 +343,86 @@ public abstract class GenericTape {
 
 	public abstract float getRenderPercent();
 	
+	public void setRenderListener( RenderListener listener ) {
+		this.renderListener = listener;
+	}
+	
+	public RenderListener getRenderListener() {
+		return renderListener;
+	}
+	
+	public void setCancellationToken( CancellationToken token ) {
+		this.cancellation = token;
+	}
+	
+	/* true renders everything but writes no block files, see IntermediateBlockRepresentation.setDiscardBlocks */
+	public void setDiscardBlocks( boolean discard ) {
+		this.discardBlocks = discard;
+	}
+	
+	/* the parameters the render is recorded with in its manifest, see RenderKey.matches */
+	public void setRenderKey( RenderKey key ) {
+		this.renderKey = key;
+	}
+	
+	/* the writer a render goes to, renderers start with this */
+	protected IntermediateBlockRepresentation newWriter( String path, String base ) {
+		IntermediateBlockRepresentation w = new IntermediateBlockRepresentation(path, base);
+		w.setDiscardBlocks(discardBlocks);
+		if (renderKey != null) {
+			renderKey.record(w);
+		}
+		return w;
+	}
+	
+	/*
+	 * Renderers call this between blocks.  If the render has been cancelled
+	 * the blocks written to w so far are deleted and RenderCancelledException
+	 * is thrown, so nothing of an abandoned render is left on disk.
+	 */
+	protected void checkCancelled( IntermediateBlockRepresentation w ) {
+		if (cancellation != null && cancellation.isCancelled()) {
+			w.discard();
+			throw new RenderCancelledException();
+		}
+	}
+	
+	/* renderers call this before writing anything */
+	protected void renderStarted() {
+		bytesRendered.set(0);
+		blocksRendered.set(0);
+		samplesRendered.set(0);
+	}
+	
+	/* renderers call this after each block with the tape bytes and samples it took, from any thread */
+	protected void blockRendered( long bytes, long samples ) {
+		long b = bytesRendered.addAndGet(bytes);
+		int n = blocksRendered.incrementAndGet();
+		long s = samplesRendered.addAndGet(samples);
+		if (renderListener != null) {
+			renderListener.blockRendered(this, b, n, s);
+		}
+	}
+	
+	/* renderers call this once the render is written */
+	protected void renderFinished() {
+		if (renderListener != null) {
+			renderListener.renderFinished(this, bytesRendered.get(), blocksRendered.get(), samplesRendered.get());
+		}
+	}
+	
+	public long getBytesRendered() {
+		return bytesRendered.get();
+	}
+	
+	public int getBlocksRendered() {
+		return blocksRendered.get();
+	}
+	
+	public long getSamplesRendered() {
+		return samplesRendered.get();
+	}
+	
 	public void addSilence( IntermediateBlockRepresentation w, double duration, double amplitude ) {
 		w.setSystem(this.getTapeType());
 		w.addSilence(duration, amplitude);
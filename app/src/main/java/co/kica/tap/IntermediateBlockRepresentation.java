@@ -9,7 +9,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 /*
  * This class represents a simple container for PCM 8 bit data.
@@ -34,6 +40,21 @@ public class IntermediateBlockRepresentation {
 	private String system = "TAP";
 	private BufferedOutputStream blockData = null;
 	private byte earLevel = 0; 
+	private LiveRender live = null;			// render being written, blocks are published to it
+	private LiveRender liveSource = null;	// render being read while it's written
+	
+	/*
+	 * Renders being written, by directory and base name, segments included.
+	 * Their blocks have no manifest yet (and may be playing), so RenderCache
+	 * must not take them for orphans; it holds WRITERS while it looks at the
+	 * directory, as writers do when they start.  The shared blocks such a
+	 * render uses are only counted once its manifest is written, until then
+	 * they're in sharedUsed (guarded by WRITERS too).
+	 */
+	static final Object WRITERS = new Object();
+	private static HashMap<String, IntermediateBlockRepresentation> writers = new HashMap<String, IntermediateBlockRepresentation>();
+	private Thread writer = null;
+	private HashSet<String> sharedUsed = new HashSet<String>();
 	
 	private int playingBlock = 1;
 	private int playingByteInBlock = 0;
@@ -44,6 +65,28 @@ public class IntermediateBlockRepresentation {
 	private double accumulatedTimeClock = 0;
 	private double accumulatedTimeSamples = 0;
 	
+	private static final int FILL_SIZE = 8192;
+	
+	public static final String TEMP_EXT = ".tmp";
+	
+	/*
+	 * Finished blocks are stored once by content in SHARED_DIR under the
+	 * render directory, named by their MD5, and manifests point at them.
+	 * Header repeats, pilot tones and common loaders end up as one file.
+	 */
+	public static final String SHARED_DIR = ".blocks";
+	private static volatile boolean shareBlocks = true;
+	private static AtomicLong bytesShared = new AtomicLong();
+	private MessageDigest blockDigest = null;
+	
+	/* new renders store blocks with BlockCodec, readers go by each block's extension */
+	private static volatile boolean compressBlocks = true;
+	
+	/* benchmarks measure rendering without the disk, blocks go nowhere */
+	private boolean discardBlocks = false;
+	private byte[] wavePattern = new byte[0];
+	private byte[] fillBuffer = new byte[0];
+	
 	public class SampleTable {
 		
 		public double[] values;
@@ -98,6 +141,7 @@ public class IntermediateBlockRepresentation {
 		for (long i=0; i<samples; i++) {
 			addSample( tbl.getSample() );
 		}
+		totalBytes += samples;
 	}
 	
 	public void addSample( double amplitude ) {
@@ -219,6 +263,9 @@ public class IntermediateBlockRepresentation {
 			//this.sampleRate = Integer.parseInt(this.manifest.getValue("Info.SampleRate"));
 			//this.manifest.Root().Dump();
 		} else {
+			if (compressBlocks) {
+				this.baseExt = BlockCodec.EXT;
+			}
 			this.manifest.setValue("Info.BaseName", this.baseName);
 			this.manifest.setValue("Info.BasePath", this.basePath);
 			this.manifest.setValue("Info.System", this.system );
@@ -232,7 +279,11 @@ public class IntermediateBlockRepresentation {
 			// create a file
 			this.bytesWritten = 0;
 			this.blockData = null;
-
+			
+			this.liveSource = LiveRender.get(path, base);
+			if (this.liveSource == null) {
+				this.live = LiveRender.claim(path, base);
+			}
 		}
 	}
 	
@@ -240,18 +291,41 @@ public class IntermediateBlockRepresentation {
 		return (short)(b & 0xff);
 	}
 	
-	private void add8Bit(short value) {
-		
-		this.bytesWritten++;
-		
+	private void openBlockData() {
 		if (blockData == null) {
+			startWriting();
 			try {
-				blockData = new BufferedOutputStream( new FileOutputStream(this.basePath+"/"+getCurrentFile()), 32768 );
+				OutputStream out;
+				if (discardBlocks) {
+					out = new OutputStream() {
+						public void write(int b) {
+						}
+						public void write(byte[] b, int off, int len) {
+						}
+					};
+				} else {
+					out = new FileOutputStream(this.basePath+"/"+getCurrentFile());
+				}
+				if (BlockCodec.isEncoded(getCurrentFile())) {
+					out = new BlockCodec.Encoder(out);
+				}
+				blockDigest = (shareBlocks && !discardBlocks) ? newDigest() : null;
+				if (blockDigest != null) {
+					out = new DigestOutputStream(out, blockDigest);
+				}
+				blockData = new BufferedOutputStream( out, 32768 );
 			} catch (FileNotFoundException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
 		}
+	}
+	
+	private void add8Bit(short value) {
+		
+		this.bytesWritten++;
+		
+		openBlockData();
 		
 		try {
 			blockData.write(value & 0xff);
@@ -261,6 +335,20 @@ public class IntermediateBlockRepresentation {
 		}
 	}
 	
+	private void addBytes(byte[] b, int off, int len) {
+		
+		this.bytesWritten += len;
+		
+		openBlockData();
+		
+		try {
+			blockData.write(b, off, len);
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+	
 	public int blockSize() {
 		return this.bytesWritten;
 	}
@@ -290,6 +378,82 @@ public class IntermediateBlockRepresentation {
 		totalBytes += neededSamples;
 	}
 	
+	/*
+	 * Builds one square wave cycle into wavePattern, the same samples addSquareWave
+	 * writes (rest half then amplitude half) rotated by phase. A phase of 180
+	 * degrees is the unrotated cycle. Returns the pattern length.
+	 */
+	private int buildSquareWave( long neededSamples, double amplitude, double rest_amplitude, double phase ) {
+		int half = (int)(neededSamples / 2);
+		int len = half * 2;
+		
+		if (wavePattern.length < len) {
+			wavePattern = new byte[len];
+		}
+		
+		double turn = ((phase - 180.0) % 360.0 + 360.0) % 360.0;
+		int shift = 0;
+		if (len > 0) {
+			shift = (int)(Math.round(len * turn / 360.0) % len);
+		}
+		
+		byte hi = (byte)asByte((byte)(rest_amplitude * 127 + 128));
+		byte lo = (byte)asByte((byte)(amplitude * 127 + 128));
+		for (int i=0; i<len; i++) {
+			int src = (i + shift) % len;
+			wavePattern[i] = (src < half) ? hi : lo;
+		}
+		
+		return len;
+	}
+	
+	/* bulk version of addSquareWave, writes count identical cycles starting at the given phase */
+	public void addSquareWaves( double duration, double amplitude, double rest_amplitude, long count, double phase ) {
+		
+		if (duration<1 || count<1) {
+			return;
+		}
+		
+		long neededSamples =  Math.round(getSampleRate() * (duration / 1000000));
+		int len = buildSquareWave(neededSamples, amplitude, rest_amplitude, phase);
+		
+		if (len > 0) {
+			// repeat the cycle into the fill buffer so we write in large runs
+			int perFill = Math.max(1, FILL_SIZE / len);
+			if (fillBuffer.length < perFill * len) {
+				fillBuffer = new byte[perFill * len];
+			}
+			for (int i=0; i<perFill; i++) {
+				System.arraycopy(wavePattern, 0, fillBuffer, i*len, len);
+			}
+			
+			long remaining = count;
+			while (remaining > 0) {
+				int n = (int)Math.min(remaining, perFill);
+				addBytes(fillBuffer, 0, n*len);
+				remaining -= n;
+			}
+		}
+		
+		totalBytes += neededSamples * count;
+	}
+	
+	/* writes only the first or second half of a phased square wave cycle */
+	public void addHalfSquareWave( double duration, double amplitude, double rest_amplitude, double phase, boolean secondHalf ) {
+		
+		if (duration<1) {
+			return;
+		}
+		
+		long neededSamples =  Math.round(getSampleRate() * (duration / 1000000));
+		int len = buildSquareWave(neededSamples, amplitude, rest_amplitude, phase);
+		int half = len / 2;
+		
+		addBytes(wavePattern, secondHalf ? half : 0, half);
+		
+		totalBytes += half;
+	}
+	
 	public void addPauseOld( double duration, double amplitude ) {
 		
 		if (duration < 1000.0) {
@@ -471,6 +635,7 @@ public class IntermediateBlockRepresentation {
 		this.manifest.setValue("Data."+Integer.toString(this.blockIndex)+".Type", "SILENCE");
 		this.manifest.setValue("Data."+Integer.toString(this.blockIndex)+".Duration", Long.toString(neededSamples) );
 		this.manifest.setValue("Data."+Integer.toString(this.blockIndex)+".Start", Integer.toString(this.startOfBlock));
+		publish(this.blockIndex);
 		
 		startOfBlock = totalBytes;
 		
@@ -493,11 +658,18 @@ public class IntermediateBlockRepresentation {
 				e.printStackTrace();
 			}
 			
+			String source = getCurrentFile();
+			if (blockDigest != null) {
+				source = shareBlock(source, blockDigest.digest());
+				blockDigest = null;
+			}
+			
 			// add entry to manifest
-			this.manifest.setValue("Data."+Integer.toString(this.blockIndex)+".Source", getCurrentFile());
+			this.manifest.setValue("Data."+Integer.toString(this.blockIndex)+".Source", source);
 			this.manifest.setValue("Data."+Integer.toString(this.blockIndex)+".Type", "DATA");
 			this.manifest.setValue("Data."+Integer.toString(this.blockIndex)+".Duration", Integer.toString(bytesWritten) );
 			this.manifest.setValue("Data."+Integer.toString(this.blockIndex)+".Start", Integer.toString(this.startOfBlock));
+			publish(this.blockIndex);
 			
 			// now reset for next block
 			blockIndex++;
@@ -510,6 +682,84 @@ public class IntermediateBlockRepresentation {
 		}
 	}
 
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+	
+	/* moves a finished block file to the shared store, or drops it if the same block is there already */
+	private String shareBlock( String file, byte[] digest ) {
+		StringBuilder name = new StringBuilder(SHARED_DIR+"/");
+		for (byte b : digest) {
+			name.append(Character.forDigit((b >> 4) & 0xf, 16));
+			name.append(Character.forDigit(b & 0xf, 16));
+		}
+		name.append("."+this.baseExt);
+		
+		File src = new File(this.basePath+"/"+file);
+		File dst = new File(this.basePath+"/"+name);
+		// a trim can't take the shared block between finding it and noting it's used
+		synchronized (WRITERS) {
+			if (dst.exists() && dst.length() == src.length()) {
+				src.delete();
+				bytesShared.addAndGet(dst.length());
+				sharedUsed.add(dst.getName());
+				return name.toString();
+			}
+			
+			dst.getParentFile().mkdirs();
+			if (src.renameTo(dst)) {
+				sharedUsed.add(dst.getName());
+				return name.toString();
+			}
+		}
+		return file;
+	}
+	
+	/* false keeps every block in its own file, as before */
+	public static void setShareBlocks( boolean share ) {
+		shareBlocks = share;
+	}
+	
+	/* block bytes not written because an identical block was already stored */
+	public static long getBytesShared() {
+		return bytesShared.get();
+	}
+	
+	/* false writes plain 8 bit PCM block files */
+	public static void setCompressBlocks( boolean compress ) {
+		compressBlocks = compress;
+	}
+	
+	/* true renders everything but writes no block files, only for measuring */
+	public void setDiscardBlocks( boolean discard ) {
+		this.discardBlocks = discard;
+	}
+	
+	public static boolean isSharedBlock( String source ) {
+		return source != null && source.startsWith(SHARED_DIR+"/");
+	}
+	
+	/* hands a finished block to anyone playing the render as it's written */
+	private void publish( int index ) {
+		if (this.live != null) {
+			String d = "Data."+Integer.toString(index);
+			this.live.publish(this.manifest.getValue(d+".Type"), this.manifest.getValue(d+".Duration"),
+					this.manifest.getValue(d+".Start"), this.manifest.getValue(d+".Source"), this.sampleRate);
+		}
+	}
+	
+	/* a manifest entry of block index, from the live render if it's still being written */
+	private String blockValue( int index, String field ) {
+		if (this.liveSource != null) {
+			return this.liveSource.getValue(index, field);
+		}
+		return this.manifest.getValue("Data."+Integer.toString(index)+"."+field);
+	}
+
 	public int getSampleRate() {
 		return sampleRate;
 	}
@@ -539,10 +789,163 @@ public class IntermediateBlockRepresentation {
 	public void done() {
 		flushChunkIfNeeded();
 		writeMeta();
+		stopWriting();
+		if (this.live != null) {
+			this.live.finish();
+		}
+	}
+	
+	private static String writerKey( String path, String base ) {
+		return new File(path).getAbsolutePath()+"/"+base;
+	}
+	
+	private void startWriting() {
+		if (this.writer != null) {
+			return;
+		}
+		synchronized (WRITERS) {
+			this.writer = Thread.currentThread();
+			writers.put(writerKey(this.basePath, this.baseName), this);
+		}
+	}
+	
+	private void stopWriting() {
+		synchronized (WRITERS) {
+			String key = writerKey(this.basePath, this.baseName);
+			if (writers.get(key) == this) {
+				writers.remove(key);
+			}
+			this.writer = null;
+			sharedUsed.clear();
+		}
+	}
+	
+	/* true while base in dir is being written, call holding WRITERS; a render whose thread died is over */
+	static boolean isWriting( File dir, String base ) {
+		IntermediateBlockRepresentation w = writers.get(writerKey(dir.getPath(), base));
+		return w != null && w.writer != null && w.writer.isAlive();
+	}
+	
+	/* names of the shared blocks used by renders still being written in dir, call holding WRITERS */
+	static HashSet<String> sharedInUse( File dir ) {
+		HashSet<String> names = new HashSet<String>();
+		String prefix = new File(dir.getPath()).getAbsolutePath()+"/";
+		for (String key : writers.keySet()) {
+			IntermediateBlockRepresentation w = writers.get(key);
+			if (key.startsWith(prefix) && key.indexOf('/', prefix.length()) < 0 && w.writer != null && w.writer.isAlive()) {
+				names.addAll(w.sharedUsed);
+			}
+		}
+		return names;
 	}
 	
 	public void commit() {
-		OGDLDocument.WriteOGDLFile(this.getManifestName(), this.manifest);
+		writeManifest();
+	}
+	
+	/*
+	 * The manifest is what makes a render exist, so it goes to a temporary
+	 * file first and is renamed into place.  Blocks without a manifest are
+	 * left to RenderCache to sweep up.
+	 */
+	private void writeManifest() {
+		File dst = new File(this.getManifestName());
+		File tmp = new File(this.getManifestName()+TEMP_EXT);
+		OGDLDocument.WriteOGDLFile(tmp.getPath(), this.manifest);
+		if (!tmp.renameTo(dst)) {
+			dst.delete();
+			if (!tmp.renameTo(dst)) {
+				System.out.println("!!! Could not move "+tmp.getPath()+" to "+dst.getPath());
+			}
+		}
+	}
+
+	/*
+	 * A writer for one stretch of the tape rendered on its own, starting from
+	 * the state addPause leaves behind. Its blocks go to temporary files until
+	 * append() adds them to this render.
+	 */
+	public IntermediateBlockRepresentation newSegment( int index ) {
+		IntermediateBlockRepresentation seg = new IntermediateBlockRepresentation(this.basePath, this.baseName+".part"+index);
+		seg.setSampleRate(this.sampleRate);
+		seg.system = this.system;
+		seg.discardBlocks = this.discardBlocks;
+		return seg;
+	}
+	
+	/* moves a finished segment's blocks onto the end of this render, renumbered as if rendered here */
+	public void append( IntermediateBlockRepresentation seg ) {
+		startWriting();
+		flushChunkIfNeeded();
+		seg.flushChunkIfNeeded();
+		
+		for (int i=1; i<seg.blockIndex; i++) {
+			String from = "Data."+Integer.toString(i);
+			String to = "Data."+Integer.toString(this.blockIndex);
+			String type = seg.manifest.getValue(from+".Type");
+			
+			if (type.equals("DATA")) {
+				String source = seg.manifest.getValue(from+".Source");
+				if (isSharedBlock(source)) {
+					synchronized (WRITERS) {
+						sharedUsed.add(source.substring(source.lastIndexOf('/') + 1));
+					}
+					this.manifest.setValue(to+".Source", source);
+				} else {
+					File src = new File(seg.basePath+"/"+source);
+					File dst = new File(this.basePath+"/"+getCurrentFile());
+					dst.delete();
+					if (!src.renameTo(dst)) {
+						System.out.println("!!! Could not move "+src.getPath()+" to "+dst.getPath());
+					}
+					this.manifest.setValue(to+".Source", getCurrentFile());
+				}
+			}
+			this.manifest.setValue(to+".Type", type);
+			this.manifest.setValue(to+".Duration", seg.manifest.getValue(from+".Duration"));
+			this.manifest.setValue(to+".Start", Integer.toString(this.totalBytes + Integer.parseInt(seg.manifest.getValue(from+".Start"))));
+			publish(this.blockIndex);
+			
+			blockIndex++;
+		}
+		
+		totalBytes += seg.totalBytes;
+		startOfBlock = totalBytes;
+		totalBlocks += seg.totalBlocks;
+		totalData += seg.totalData;
+		totalGap += seg.totalGap;
+		
+		// carry on from wherever the segment left off
+		earLevel = seg.earLevel;
+		accumulatedTimeClock = seg.accumulatedTimeClock;
+		accumulatedTimeSamples = seg.accumulatedTimeSamples;
+		
+		// its blocks are this render's now
+		seg.stopWriting();
+	}
+	
+	/* throws away a segment that won't be appended */
+	public void discard() {
+		if (blockData != null) {
+			try {
+				blockData.close();
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+			new File(this.basePath+"/"+getCurrentFile()).delete();
+			blockData = null;
+			blockDigest = null;
+			bytesWritten = 0;
+		}
+		for (int i=1; i<blockIndex; i++) {
+			String source = this.manifest.getValue("Data."+Integer.toString(i)+".Source");
+			// shared blocks may be used by other renders, RenderCache removes them once nothing does
+			if (source != null && source.length() > 0 && !isSharedBlock(source)) {
+				new File(this.basePath+"/"+source).delete();
+			}
+		}
+		stopWriting();
 	}
 
 	private void writeMeta() {
@@ -552,7 +955,7 @@ public class IntermediateBlockRepresentation {
 		this.manifest.setValue("Info.SampleRate", Integer.toString(this.sampleRate));
 		this.manifest.setValue("Info.System", this.system );
 		
-		OGDLDocument.WriteOGDLFile(this.getManifestName(), this.manifest);
+		writeManifest();
 	}
 
 	public String getSystem() {
@@ -624,6 +1027,9 @@ public class IntermediateBlockRepresentation {
 	}
 
 	public int getTotalBlocks() {
+		if (this.liveSource != null) {
+			return this.liveSource.getCount();
+		}
 		return Integer.parseInt(this.manifest.getValue("Info.Blocks.Total"));
 	}
 
@@ -656,33 +1062,37 @@ public class IntermediateBlockRepresentation {
 	
 	// block specific accessors
 	public boolean validBlock(int index) {
+		if (this.liveSource != null) {
+			// playback caught up with the render, wait for the block
+			return (index >= 1 && this.liveSource.waitFor(index));
+		}
 		return (index >= 1 && index <= this.getTotalBlocks());
 	}
 	
 	public int blockDuration( int index ) {
 		if (validBlock(index)) {
-			return Integer.parseInt(this.manifest.getValue("Data."+Integer.toString(index)+".Duration"));
+			return Integer.parseInt(blockValue(index, "Duration"));
 		}
 		return 0;
 	}
 
 	public int blockStart( int index ) {
 		if (validBlock(index)) {
-			return Integer.parseInt(this.manifest.getValue("Data."+Integer.toString(index)+".Start"));
+			return Integer.parseInt(blockValue(index, "Start"));
 		}
 		return 0;
 	}
 	
 	public String blockSource( int index ) {
 		if (validBlock(index)) {
-			return this.getBasePath()+"/"+this.manifest.getValue("Data."+Integer.toString(index)+".Source");
+			return this.getBasePath()+"/"+blockValue(index, "Source");
 		}
 		return "";
 	}
 	
 	public String blockType( int index ) {
 		if (validBlock(index)) {
-			return this.manifest.getValue("Data."+Integer.toString(index)+".Type");
+			return blockValue(index, "Type");
 		}
 		return "INVALID";
 	}
@@ -716,9 +1126,13 @@ public class IntermediateBlockRepresentation {
 			FileInputStream fis = new FileInputStream(f);
 			this.playingBuffer = null;
 			System.gc();
-			this.playingBuffer = new byte[(int) f.length()];
-			int x = fis.read(this.playingBuffer);
+			byte[] data = new byte[(int) f.length()];
+			int x = fis.read(data);
 			fis.close();
+			if (BlockCodec.isEncoded(blockSource)) {
+				data = BlockCodec.decode(data);
+			}
+			this.playingBuffer = data;
 			return this.playingBuffer;
 		} catch (FileNotFoundException e) {
 			// TODO Auto-generated catch block
@@ -764,6 +1178,15 @@ public class IntermediateBlockRepresentation {
 		this.manifest.setValue("Info.Loader.Model", Integer.toString(model));
 	}
 	
+	/* render settings, see RenderKey */
+	public void setRenderParam( String name, String value ) {
+		this.manifest.setValue("Info.Render."+name, value);
+	}
+	
+	public String getRenderParam( String name ) {
+		return this.manifest.getValue("Info.Render."+name);
+	}
+	
 	public int getLoaderType() {
 		String s = this.manifest.getValue("Info.Loader.Model");
 		if (s == null || s.equals("")) {
@@ -780,22 +1203,28 @@ public class IntermediateBlockRepresentation {
 		this.earLevel = earLevel;
 	}
 	
+	/* headerless 8 bit PCM, see WavExporter */
 	public void toRawAudio(String filename) {
-		this.reset();
-		//byte[] buff = new byte[1024];
-		
+		WavExporter wav = new WavExporter(this);
+		wav.setHeader(false);
 		try {
-			FileOutputStream fos = new FileOutputStream( new File(filename) );
-			byte[] buff = this.getCurrentBuffer(false);
-			while (buff.length > 0) {
-				fos.write(buff);
-				int i = this.nextBuffer();
-				buff = this.getCurrentBuffer(false);
-			}
-			fos.close();
-		} catch (FileNotFoundException e) {
+			wav.export(new File(filename));
+		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+		}
+	}
+	
+	public void toWav(String filename) {
+		toWav(filename, 8);
+	}
+	
+	/* a RIFF/WAVE (or RF64 when huge) file of 8 or 16 bit samples */
+	public void toWav(String filename, int bitsPerSample) {
+		WavExporter wav = new WavExporter(this);
+		wav.setBitsPerSample(bitsPerSample);
+		try {
+			wav.export(new File(filename));
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -807,6 +1236,10 @@ public class IntermediateBlockRepresentation {
 	}
 	
 	public int getRenderedSampleRate() {
+		if (this.liveSource != null) {
+			this.liveSource.waitFor(1);
+			return this.liveSource.getSampleRate();
+		}
 		int v = 44100;
 		String s = this.manifest.getValue("Info.SampleRate");
 		if (s != null && s.length() > 0) {
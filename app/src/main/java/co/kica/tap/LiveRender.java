@@ -0,0 +1,160 @@
+package co.kica.tap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * A render that can be played while it is still being written.  The writer
+ * publishes each block as soon as its file is complete, a reader opened on
+ * the same render gets the blocks from here and waits when it catches up
+ * with the writer.
+ */
+public class LiveRender {
+
+	public interface Listener {
+		public void blockReady( int index );
+	}
+
+	private static class Block {
+		String type;
+		String duration;
+		String start;
+		String source;
+	}
+
+	private static HashMap<String, LiveRender> renders = new HashMap<String, LiveRender>();
+
+	private Thread writer;
+	private boolean claimed = false;
+	private ArrayList<Block> blocks = new ArrayList<Block>();
+	private boolean finished = false;
+	private int sampleRate = 44100;
+	private Listener listener = null;
+
+	private LiveRender( Thread writer ) {
+		this.writer = writer;
+	}
+
+	private static String key( String path, String base ) {
+		return path + "/" + base;
+	}
+
+	/* registers a render about to be written by the calling thread */
+	public static LiveRender begin( String path, String base ) {
+		LiveRender live = new LiveRender(Thread.currentThread());
+		synchronized (renders) {
+			renders.put(key(path, base), live);
+		}
+		return live;
+	}
+
+	/* forgets the render begun by the calling thread, readers already attached keep their copy */
+	public static void end( String path, String base ) {
+		LiveRender live;
+		synchronized (renders) {
+			live = renders.get(key(path, base));
+			if (live == null || live.writer != Thread.currentThread()) {
+				// another thread's render of the same base, not ours to end
+				return;
+			}
+			renders.remove(key(path, base));
+		}
+		live.finish();
+	}
+
+	/* the live render being written by the calling thread, for its writer */
+	static LiveRender claim( String path, String base ) {
+		synchronized (renders) {
+			LiveRender live = renders.get(key(path, base));
+			if (live != null && !live.claimed && live.writer == Thread.currentThread()) {
+				live.claimed = true;
+				return live;
+			}
+		}
+		return null;
+	}
+
+	/* the live render for a reader, null if nothing is being written there */
+	public static LiveRender get( String path, String base ) {
+		synchronized (renders) {
+			LiveRender live = renders.get(key(path, base));
+			if (live != null && live.writer != Thread.currentThread()) {
+				return live;
+			}
+		}
+		return null;
+	}
+
+	public void setListener( Listener listener ) {
+		this.listener = listener;
+	}
+
+	void publish( String type, String duration, String start, String source, int sampleRate ) {
+		Block b = new Block();
+		b.type = type;
+		b.duration = duration;
+		b.start = start;
+		b.source = source;
+
+		int index;
+		synchronized (this) {
+			this.sampleRate = sampleRate;
+			blocks.add(b);
+			index = blocks.size();
+			notifyAll();
+		}
+
+		if (listener != null) {
+			listener.blockReady(index);
+		}
+	}
+
+	public synchronized void finish() {
+		finished = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/* blocks published so far */
+	public synchronized int getCount() {
+		return blocks.size();
+	}
+
+	public synchronized int getSampleRate() {
+		return sampleRate;
+	}
+
+	/* waits until block index is published, false if the render ended without it */
+	public synchronized boolean waitFor( int index ) {
+		while (blocks.size() < index && !finished) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return index <= blocks.size();
+	}
+
+	/* Type, Duration, Start or Source of a published block, as in the manifest */
+	public synchronized String getValue( int index, String field ) {
+		if (index < 1 || index > blocks.size()) {
+			return "";
+		}
+		Block b = blocks.get(index - 1);
+		if (field.equals("Type")) {
+			return b.type;
+		} else if (field.equals("Duration")) {
+			return b.duration;
+		} else if (field.equals("Start")) {
+			return b.start;
+		} else if (field.equals("Source")) {
+			return b.source;
+		}
+		return "";
+	}
+}
@@ -17,6 +17,7 @@ import java.util.Arrays;
 import java.lang.Math.*;
 
 public class MSXTape extends GenericTape {
+	public static final byte[] TAPE_MAGIC = { 0x1f, (byte) 0xa6, (byte) 0xde, (byte) 0xba, (byte) 0xcc, 0x13, 0x7d, 0x74 };
 	
 	private static final int CID_UNKNOWN  = 0x000;
 	private static final int CID_ASCII  = 0x100;
@@ -48,7 +49,6 @@ public class MSXTape extends GenericTape {
 	private int shortHeader = 4000;
 	private MSXChunk lastChunk = null;
 	private boolean eof = false;
-	private float renderPercent = 0f;
 	
 	private byte[] ASCII =  new byte[] { (byte)0xEA,(byte)0xEA,(byte)0xEA,(byte)0xEA,(byte)0xEA,(byte)0xEA,(byte)0xEA,(byte)0xEA,(byte)0xEA,(byte)0xEA };
 	private byte[] BIN = new byte[] { (byte)0xD0,(byte)0xD0,(byte)0xD0,(byte)0xD0,(byte)0xD0,(byte)0xD0,(byte)0xD0,(byte)0xD0,(byte)0xD0,(byte)0xD0 };
@@ -81,7 +81,7 @@ public class MSXTape extends GenericTape {
 				// reset and store into header
 				Header.reset();
 				Header.write(buff);
-				byte[] magic = { 0x1f, (byte) 0xa6, (byte) 0xde, (byte) 0xba, (byte) 0xcc, 0x13, 0x7d, 0x74 };
+				byte[] magic = TAPE_MAGIC;
 				if (Arrays.equals(getMAGIC(),magic)) {
 					System.out.println("*** File is a valid MSX Tape by the looks of it.");
 					setValid(true);
@@ -209,7 +209,7 @@ public class MSXTape extends GenericTape {
 	
 	@Override
 	public void writeAudioStreamData( String path, String base ) {
-		IntermediateBlockRepresentation w = new IntermediateBlockRepresentation(path, base);
+		IntermediateBlockRepresentation w = newWriter(path, base);
 		
 		//Data.reset();
 		byte[] raw = Data.toByteArray();
@@ -223,9 +223,13 @@ public class MSXTape extends GenericTape {
 		ArrayList<String> cuedata = new ArrayList<String>();
 		boolean lastData = false;
 		
+		renderStarted();
+		
 		while (hasData()) {		
 			
-			this.renderPercent = dataPos / Data.size();
+			checkCancelled(w);
+			int blockStart = dataPos;
+			int blockSamples = w.getTotalBytes();
 			
 		      /* it probably works fine if a long header is used for every */
 		      /* header but since the msx bios makes a distinction between */
@@ -284,14 +288,19 @@ public class MSXTape extends GenericTape {
 		      System.out.println("skipping unhandled data");
 		      dataPos++;
 		    }
+		    
+		    blockRendered(dataPos - blockStart, w.getTotalBytes() - blockSamples);
 
 		}
 		
 		// lets add some silence to contemplate the finer things in life :-)
 		this.addSilence(w, 3000000.0, PULSE_REST);
 		
+		checkCancelled(w);
+		
 		// write cue
 		w.done();
+		renderFinished();
 	}
 	
 	private void writeHeader( IntermediateBlockRepresentation w, int pulseCount ) {
@@ -29,7 +29,7 @@ public class PRGFormat {
 	public PRGFormat( String fn, int idx ) {
 
 		if (fn.toUpperCase().endsWith(".T64")) {
-			T64Format t64 = new T64Format( fn, true );
+			T64Format t64 = T64Format.open( fn, true );
 			if (t64.validHeader()) {
 				ArrayList<DirEntry> dir = t64.getDir();
 				DirEntry d = dir.get(idx);
@@ -0,0 +1,121 @@
+package co.kica.tap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Renders independent stretches of a tape on several threads.  A segment
+ * must start where the writer's state is reset (after a pause: ear level
+ * low, no timing skew, no open block), then rendering it on its own gives
+ * the same samples as rendering it in sequence.  Each segment writes to its
+ * own temporary blocks which are appended to the render in tape order.
+ */
+public class ParallelRenderer {
+
+	public interface Segment {
+		public void render( IntermediateBlockRepresentation w );
+	}
+
+	private static int threads = Runtime.getRuntime().availableProcessors();
+	private static ExecutorService pool = null;
+
+	/* 1 renders everything in sequence on the calling thread */
+	public static synchronized void setThreads( int n ) {
+		threads = Math.max(1, n);
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	public static synchronized int getThreads() {
+		return threads;
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "TapRender");
+					t.setDaemon(true);
+					t.setPriority(Thread.NORM_PRIORITY - 1);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	public static void render( IntermediateBlockRepresentation w, List<Segment> segments ) {
+		try {
+			renderSegments(w, segments);
+		} catch (RenderCancelledException e) {
+			// segments already appended belong to w now
+			w.discard();
+			throw e;
+		}
+	}
+	
+	private static void renderSegments( IntermediateBlockRepresentation w, List<Segment> segments ) {
+		if (getThreads() <= 1 || segments.size() < 2) {
+			for (Segment s : segments) {
+				s.render(w);
+			}
+			return;
+		}
+
+		ExecutorService pool = getPool();
+		ArrayList<IntermediateBlockRepresentation> parts = new ArrayList<IntermediateBlockRepresentation>();
+		ArrayList<Future<?>> jobs = new ArrayList<Future<?>>();
+
+		for (int i=0; i<segments.size(); i++) {
+			final Segment s = segments.get(i);
+			final IntermediateBlockRepresentation part = w.newSegment(i);
+			parts.add(part);
+			jobs.add(pool.submit(new Callable<Object>() {
+				public Object call() {
+					s.render(part);
+					return null;
+				}
+			}));
+		}
+
+		// stitch in tape order, later segments keep rendering meanwhile
+		int done = 0;
+		try {
+			for (; done<jobs.size(); done++) {
+				jobs.get(done).get();
+				w.append(parts.get(done));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Render interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RenderCancelledException) {
+				throw (RenderCancelledException)e.getCause();
+			}
+			throw new RuntimeException("Segment "+done+" failed to render", e.getCause());
+		} finally {
+			// anything left over failed or was abandoned, blocks not cleaned up here are orphans for RenderCache
+			for (int i=done; i<jobs.size(); i++) {
+				Future<?> job = jobs.get(i);
+				if (!job.cancel(false)) {
+					try {
+						job.get();
+					} catch (InterruptedException e) {
+						continue;
+					} catch (ExecutionException e) {
+						// finished, if badly
+					}
+				}
+				parts.get(i).discard();
+			}
+		}
+	}
+}
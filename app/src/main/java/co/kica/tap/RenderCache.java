@@ -0,0 +1,364 @@
+package co.kica.tap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Keeps the rendered audio directory (manifests plus their pcm block files)
+ * within a byte budget.  Renders are evicted least recently played first,
+ * play times are kept in a small index file in the directory.  Block files
+ * whose manifest has gone are removed as orphans, unless their render (or a
+ * segment of it) is still being written, see
+ * IntermediateBlockRepresentation.isWriting.  Blocks shared between renders
+ * (see IntermediateBlockRepresentation.SHARED_DIR) are counted once
+ * and removed when the last render using them goes.  There is one RenderCache
+ * per directory (forDir), renders running at the same time share it.
+ */
+public class RenderCache {
+
+	public static final long DEFAULT_BUDGET = 256L * 1024L * 1024L;
+	public static final String INDEX_NAME = ".renders";
+	public static final String MANIFEST_EXT = ".manifest";
+	public static final String BLOCK_EXT = ".pcm_u8";
+
+	private static AtomicLong hits = new AtomicLong();
+	private static AtomicLong misses = new AtomicLong();
+	private static AtomicLong evictions = new AtomicLong();
+	private static AtomicLong orphans = new AtomicLong();
+
+	private static HashMap<String, RenderCache> instances = new HashMap<String, RenderCache>();
+
+	private File dir;
+	private long budget;
+	private HashMap<String, Long> played = null;
+
+	/* the files making up one render */
+	private class Render {
+		String base;
+		boolean hasManifest = false;
+		long bytes = 0;
+		long lastPlayed = 0;
+		ArrayList<File> files = new ArrayList<File>();
+		ArrayList<String> shared = new ArrayList<String>();
+	}
+
+	private RenderCache( File dir, long budget ) {
+		this.dir = dir;
+		this.budget = budget;
+	}
+
+	/* the shared cache for dir, its budget set to budget */
+	public static RenderCache forDir( File dir, long budget ) {
+		String path = dir.getAbsolutePath();
+		synchronized (instances) {
+			RenderCache c = instances.get(path);
+			if (c == null) {
+				c = new RenderCache(dir, budget);
+				instances.put(path, c);
+			}
+			c.setBudget(budget);
+			return c;
+		}
+	}
+
+	public File getManifest( String base ) {
+		return new File(dir, base + MANIFEST_EXT);
+	}
+
+	/*
+	 * true if a render exists for base, counted as a hit and marked played.
+	 * A render that won't be used (other settings) should be removed first.
+	 */
+	public synchronized boolean lookup( String base ) {
+		if (getManifest(base).exists()) {
+			hits.incrementAndGet();
+			touch(base);
+			return true;
+		}
+		misses.incrementAndGet();
+		return false;
+	}
+
+	public synchronized void touch( String base ) {
+		loadIndex();
+		played.put(base, System.currentTimeMillis());
+		saveIndex();
+	}
+
+	/* deletes a render, its manifest and all of its blocks */
+	public synchronized void remove( String base ) {
+		Render r = scan().get(base);
+		if (r != null) {
+			delete(r);
+		}
+	}
+
+	/*
+	 * Removes orphaned blocks, then evicts the least recently played renders
+	 * until the directory fits the budget.  keep is never touched, it's the
+	 * render being played or just written.
+	 */
+	public synchronized void trim( String keep ) {
+		synchronized (IntermediateBlockRepresentation.WRITERS) {
+			trimLocked(keep);
+		}
+	}
+
+	private void trimLocked( String keep ) {
+		HashMap<String, Render> renders = scan();
+		long total = 0;
+		ArrayList<Render> candidates = new ArrayList<Render>();
+		HashMap<String, Integer> refs = new HashMap<String, Integer>();
+
+		for (Render r : renders.values()) {
+			if (r.base.equals(keep) || IntermediateBlockRepresentation.isWriting(dir, r.base)) {
+				total += r.bytes;
+			} else if (!r.hasManifest) {
+				System.out.println("RenderCache: removing orphaned blocks of "+r.base);
+				delete(r);
+				orphans.incrementAndGet();
+				continue;
+			} else {
+				total += r.bytes;
+				candidates.add(r);
+			}
+			for (String s : r.shared) {
+				Integer n = refs.get(s);
+				refs.put(s, (n == null) ? 1 : n + 1);
+			}
+		}
+
+		// renders still being written have no manifest to count their shared blocks from yet
+		for (String s : IntermediateBlockRepresentation.sharedInUse(dir)) {
+			Integer n = refs.get(s);
+			refs.put(s, (n == null) ? 1 : n + 1);
+		}
+
+		// shared blocks no render uses any more go now, the rest count once
+		HashMap<String, File> shared = scanShared();
+		for (File f : shared.values()) {
+			if (!refs.containsKey(f.getName())) {
+				f.delete();
+				orphans.incrementAndGet();
+			} else {
+				total += f.length();
+			}
+		}
+
+		while (total > budget && candidates.size() > 0) {
+			Render oldest = candidates.get(0);
+			for (Render r : candidates) {
+				if (r.lastPlayed < oldest.lastPlayed) {
+					oldest = r;
+				}
+			}
+			candidates.remove(oldest);
+			System.out.println("RenderCache: evicting "+oldest.base+" ("+oldest.bytes+" bytes)");
+			delete(oldest);
+			total -= oldest.bytes;
+			evictions.incrementAndGet();
+
+			for (String s : oldest.shared) {
+				int n = refs.get(s) - 1;
+				refs.put(s, n);
+				File f = shared.get(s);
+				if (n == 0 && f != null) {
+					total -= f.length();
+					f.delete();
+				}
+			}
+		}
+	}
+
+	/* bytes used by all renders in the directory */
+	public synchronized long getSize() {
+		long total = 0;
+		for (Render r : scan().values()) {
+			total += r.bytes;
+		}
+		for (File f : scanShared().values()) {
+			total += f.length();
+		}
+		return total;
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	public synchronized void setBudget( long budget ) {
+		this.budget = budget;
+	}
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	public static long getEvictions() {
+		return evictions.get();
+	}
+
+	public static long getOrphans() {
+		return orphans.get();
+	}
+
+	/* groups the directory's files by render, base.manifest and base_N.pcm_u8 or .rle_u8 (and an unfinished base.manifest.tmp) */
+	private HashMap<String, Render> scan() {
+		HashMap<String, Render> renders = new HashMap<String, Render>();
+		File[] list = dir.listFiles();
+		if (list == null) {
+			return renders;
+		}
+
+		loadIndex();
+		for (File f : list) {
+			String name = f.getName();
+			String base = null;
+			boolean manifest = false;
+
+			if (name.endsWith(MANIFEST_EXT)) {
+				base = name.substring(0, name.length() - MANIFEST_EXT.length());
+				manifest = true;
+			} else if (name.endsWith(MANIFEST_EXT + IntermediateBlockRepresentation.TEMP_EXT)) {
+				base = name.substring(0, name.length() - MANIFEST_EXT.length() - IntermediateBlockRepresentation.TEMP_EXT.length());
+			} else if (name.endsWith(BLOCK_EXT) || BlockCodec.isEncoded(name)) {
+				String stem = name.substring(0, name.lastIndexOf('.'));
+				if (stem.lastIndexOf('_') > 0) {
+					base = stem.substring(0, stem.lastIndexOf('_'));
+				}
+			}
+
+			if (base == null) {
+				continue;
+			}
+
+			Render r = renders.get(base);
+			if (r == null) {
+				r = new Render();
+				r.base = base;
+				renders.put(base, r);
+			}
+			r.files.add(f);
+			r.bytes += f.length();
+			if (manifest) {
+				r.hasManifest = true;
+				r.shared = sharedBlocks(f);
+				Long t = played.get(base);
+				r.lastPlayed = (t != null) ? t.longValue() : f.lastModified();
+			}
+		}
+
+		return renders;
+	}
+
+	/* the shared block files by name */
+	private HashMap<String, File> scanShared() {
+		HashMap<String, File> shared = new HashMap<String, File>();
+		File[] list = new File(dir, IntermediateBlockRepresentation.SHARED_DIR).listFiles();
+		if (list != null) {
+			for (File f : list) {
+				shared.put(f.getName(), f);
+			}
+		}
+		return shared;
+	}
+
+	/* names of the shared blocks a manifest refers to */
+	private ArrayList<String> sharedBlocks( File manifest ) {
+		ArrayList<String> names = new ArrayList<String>();
+		OGDLDocument m = OGDLDocument.ReadOGDLFile(manifest.getPath());
+		for (int i=1; m.getValue("Data."+i+".Type").length() > 0; i++) {
+			String source = m.getValue("Data."+i+".Source");
+			if (IntermediateBlockRepresentation.isSharedBlock(source)) {
+				names.add(source.substring(source.lastIndexOf('/') + 1));
+			}
+		}
+		return names;
+	}
+
+	private void delete( Render r ) {
+		// manifest first, so a partly deleted render is never mistaken for a valid one
+		for (File f : r.files) {
+			if (f.getName().endsWith(MANIFEST_EXT)) {
+				f.delete();
+			}
+		}
+		for (File f : r.files) {
+			f.delete();
+		}
+
+		loadIndex();
+		if (played.remove(r.base) != null) {
+			saveIndex();
+		}
+	}
+
+	/* index lines are base name and last played time (ms) separated by a tab */
+	private void loadIndex() {
+		if (played != null) {
+			return;
+		}
+
+		played = new HashMap<String, Long>();
+		File f = new File(dir, INDEX_NAME);
+		if (!f.exists()) {
+			return;
+		}
+
+		try {
+			BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+			String line;
+			while ((line = r.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab > 0) {
+					try {
+						played.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1)));
+					} catch (NumberFormatException e) {
+						// skip damaged lines
+					}
+				}
+			}
+			r.close();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+
+	private void saveIndex() {
+		File f = new File(dir, INDEX_NAME);
+		File tmp = new File(dir, INDEX_NAME + ".tmp");
+
+		try {
+			Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+			Iterator<Map.Entry<String, Long>> it = played.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Long> e = it.next();
+				w.write(e.getKey() + "\t" + e.getValue() + "\n");
+			}
+			w.close();
+			if (!tmp.renameTo(f)) {
+				f.delete();
+				tmp.renameTo(f);
+			}
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+}
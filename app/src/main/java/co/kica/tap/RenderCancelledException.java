@@ -0,0 +1,11 @@
+package co.kica.tap;
+
+/* thrown out of writeAudioStreamData when its CancellationToken is cancelled */
+public class RenderCancelledException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public RenderCancelledException() {
+		super("Render cancelled");
+	}
+}
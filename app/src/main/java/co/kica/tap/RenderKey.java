@@ -0,0 +1,124 @@
+package co.kica.tap;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/*
+ * Names a render by everything that changes its audio: the tape's content
+ * key, the program index for multi-program files, the format and the render
+ * settings that format actually uses.  Each combination gets its own render
+ * so switching a setting back and forth finds the earlier one still there.
+ * The parameters are also written to the manifest, a render is only reused
+ * if they match.
+ */
+public class RenderKey {
+
+	private String digest;
+	private int index;
+	private String format;
+	private int sampleRate = 0;
+	private int loaderModel = 0;
+	private String options = "";
+
+	public RenderKey( String digest, int index, String format ) {
+		this.digest = digest;
+		this.index = index;
+		this.format = format;
+	}
+
+	/* a key holding only the settings that matter to the format */
+	public static RenderKey create( String digest, int index, FormatRegistry.Format format, int sampleRate, int prgLoader, boolean zxAccelerated ) {
+		String name = format.getName();
+		RenderKey k = new RenderKey(digest, index, name);
+
+		if (name.equals("TZX")) {
+			k.sampleRate = sampleRate;
+		} else if (name.equals("ZXTAP")) {
+			k.sampleRate = sampleRate;
+			k.loaderModel = zxAccelerated ? ZXTAP.LOADER_ACCELERATED : ZXTAP.LOADER_ROM;
+		} else if (name.equals("PRG")) {
+			k.loaderModel = prgLoader;
+		}
+
+		return k;
+	}
+
+	public String getVariant() {
+		return format + "/" + sampleRate + "/" + loaderModel + "/" + options;
+	}
+
+	/* digest[.index].variant, the variant as 8 hex digits of its hash */
+	public String getBaseName() {
+		String base = digest;
+		if (index > 0) {
+			base = base + "." + Integer.toHexString(index);
+		}
+
+		try {
+			long[] h = ContentKey.murmur3(ByteBuffer.wrap(getVariant().getBytes("UTF-8")), 0);
+			String v = Integer.toHexString((int)h[0]);
+			while (v.length() < 8) {
+				v = "0" + v;
+			}
+			return base + "." + v;
+		} catch (UnsupportedEncodingException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+
+		return base;
+	}
+
+	/* sets the render parameters on a writer, before done() so its one manifest write has them */
+	public void record( IntermediateBlockRepresentation ibr ) {
+		ibr.setRenderParam("Digest", digest);
+		ibr.setRenderParam("Index", Integer.toString(index));
+		ibr.setRenderParam("Format", format);
+		ibr.setRenderParam("SampleRate", Integer.toString(sampleRate));
+		ibr.setRenderParam("Loader", Integer.toString(loaderModel));
+		ibr.setRenderParam("Options", options);
+	}
+
+	/* true if the render's manifest was recorded with these parameters */
+	public boolean matches( String path, String base ) {
+		IntermediateBlockRepresentation ibr = new IntermediateBlockRepresentation(path, base);
+		return digest.equals(ibr.getRenderParam("Digest")) &&
+				Integer.toString(index).equals(ibr.getRenderParam("Index")) &&
+				format.equals(ibr.getRenderParam("Format")) &&
+				Integer.toString(sampleRate).equals(ibr.getRenderParam("SampleRate")) &&
+				Integer.toString(loaderModel).equals(ibr.getRenderParam("Loader")) &&
+				options.equals(ibr.getRenderParam("Options"));
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getLoaderModel() {
+		return loaderModel;
+	}
+
+	public String getOptions() {
+		return options;
+	}
+
+	public void setOptions( String options ) {
+		this.options = options;
+	}
+
+	public String toString() {
+		return getBaseName() + " (" + getVariant() + ")";
+	}
+}
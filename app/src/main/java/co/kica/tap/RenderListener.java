@@ -0,0 +1,16 @@
+package co.kica.tap;
+
+/*
+ * Told about a render as it happens.  Renderers report after each block, on
+ * whichever thread rendered it (see ParallelRenderer), so implementations
+ * must be thread safe and cheap; anything costly such as posting a message
+ * should be throttled here rather than in the renderer.
+ */
+public interface RenderListener {
+
+	/* totals so far: tape bytes consumed, blocks done and samples written */
+	public void blockRendered( GenericTape tape, long bytesConsumed, int blocksDone, long samplesEmitted );
+
+	/* the render is complete, getRenderPercent() is 1 from here on */
+	public void renderFinished( GenericTape tape, long bytesConsumed, int blocksDone, long samplesEmitted );
+}
@@ -1,27 +1,47 @@
 package co.kica.tap;
 
 import java.io.BufferedInputStream;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
-
-import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import co.kica.fileutils.SmartFile;
 import co.kica.fileutils.SmartFileInputStream;
 
 public class T64Format {
 	
+	public static final int HEADER_SIZE = 0x40;
+	public static final int DIR_ENTRY_SIZE = 0x20;
+	public static final int MAX_CACHED = 16;
+	
+	/* parsed archives by path, reused while the file's mtime and length are unchanged */
+	private static LinkedHashMap<String, T64Format> cache = new LinkedHashMap<String, T64Format>(MAX_CACHED, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, T64Format> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+	
 	private String filename;
-	private byte[] data;
+	private byte[] data;		// whole archive, only used for archives inside other containers
+	private File source;		// physical archive, read with positional reads
+	private byte[] header = new byte[HEADER_SIZE];
+	private byte[] directory = new byte[0];
+	private long length;
+	private long modified;
+	private ArrayList<DirEntry> dir;
 	private int progtype;
 	private int start;
 	private int end;
 	
 	public class DirEntry {
-		byte[] dref = null;
 		String filename = "FILE";
 		int type = 0;
 		int type_1541 = 0;
@@ -30,12 +50,12 @@ public class T64Format {
 		int size = 0;
 		int offset = 0;
 		
-		public DirEntry(byte[] dref) {
-			this.dref = dref;
+		public DirEntry() {
 		}
 		
+		/* fetched from the archive on demand */
 		public byte[] getProgramData() {
-			return Arrays.copyOfRange(dref, this.offset, this.offset+this.size);
+			return readAt(this.offset, this.size);
 		}
 		
 		public int getProgramLoadAddress() {
@@ -100,15 +120,48 @@ public class T64Format {
 	}
 	
 	public T64Format( String fn, boolean smart) {
-		if (smart)
+		if (smart && !new File(fn).isFile())
 			this.loadFileSmart(fn);
 		else
 			this.loadFile(fn);
 	}
 	
-	private void loadFileSmart(String filename) {
-		byte[] loadAddr = new byte[2];
+	/* an archive already in memory, e.g. one inside another container */
+	public T64Format( String name, byte[] data ) {
+		this.data = data;
+		this.length = data.length;
+		this.setFilename(name.toUpperCase().replaceFirst(".T64$", ""));
+		this.header = readAt(0, HEADER_SIZE);
+		this.directory = readAt(HEADER_SIZE, directorySize());
+	}
+
+	/*
+	 * Returns the parsed archive for fn, reusing the cached one when the file
+	 * hasn't changed since it was parsed.  Archives inside other containers
+	 * have no mtime of their own so they are parsed every time.
+	 */
+	public static T64Format open( String fn, boolean smart ) {
+		File f = new File(fn);
+		if (!f.isFile()) {
+			return new T64Format(fn, smart);
+		}
 		
+		String key = f.getAbsolutePath();
+		synchronized (cache) {
+			T64Format t64 = cache.get(key);
+			if (t64 != null && t64.modified == f.lastModified() && t64.length == f.length()) {
+				return t64;
+			}
+		}
+		
+		T64Format t64 = new T64Format(fn, smart);
+		synchronized (cache) {
+			cache.put(key, t64);
+		}
+		return t64;
+	}
+	
+	private void loadFileSmart(String filename) {
 		SmartFile f = new SmartFile(filename);
 		data = new byte[(int)f.length()];
 		
@@ -124,26 +177,52 @@ public class T64Format {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		
+		this.length = data.length;
+		this.header = readAt(0, HEADER_SIZE);
+		this.directory = readAt(HEADER_SIZE, directorySize());
 	}
 	
 	private void loadFile(String filename) {
-		byte[] loadAddr = new byte[2];
+		// only the header and directory are read now, programs are read when asked for
+		source = new File(filename);
+		this.length = source.length();
+		this.modified = source.lastModified();
+		this.setFilename(source.getName().toUpperCase().replaceFirst(".T64$", ""));
+		this.header = readAt(0, HEADER_SIZE);
+		this.directory = readAt(HEADER_SIZE, directorySize());
+	}
+	
+	private int directorySize() {
+		long size = (long)getMaxDirEntries() * DIR_ENTRY_SIZE;
+		return (int)Math.max(0, Math.min(size, length - HEADER_SIZE));
+	}
+	
+	/* positional read, anything past the end of the archive reads as zero */
+	private byte[] readAt( long offset, int size ) {
+		byte[] buff = new byte[Math.max(0, size)];
+		long avail = Math.min(size, length - offset);
 		
-		File f = new File(filename);
-		data = new byte[(int)f.length()];
+		if (offset < 0 || avail <= 0) {
+			return buff;
+		}
+		
+		if (data != null) {
+			System.arraycopy(data, (int)offset, buff, 0, (int)avail);
+			return buff;
+		}
 		
 		try {
-			BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f));
-			int plSize = bis.read(data);
-			bis.close();
-			this.setFilename(f.getName().toUpperCase().replaceFirst(".T64$", ""));
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			RandomAccessFile raf = new RandomAccessFile(source, "r");
+			raf.seek(offset);
+			raf.readFully(buff, 0, (int)avail);
+			raf.close();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		
+		return buff;
 	}
 
 	public String getFilename() {
@@ -155,24 +234,24 @@ public class T64Format {
 	}
 	
 	public byte[] getMAGIC() {
-		byte[] magic = Arrays.copyOfRange(this.data, 0, 3);
+		byte[] magic = Arrays.copyOfRange(this.header, 0, 3);
 		return magic;
 	}
 	
 	public int getVersionMinor() {
-		return this.data[0x20] & 0xff;
+		return this.header[0x20] & 0xff;
 	}
 	
 	public int getVersionMajor() {
-		return this.data[0x21] & 0xff;
+		return this.header[0x21] & 0xff;
 	}
 	
 	public int getMaxDirEntries() {
-		return (this.data[0x22] & 0xff) + 256*(this.data[0x23] & 0xff);
+		return (this.header[0x22] & 0xff) + 256*(this.header[0x23] & 0xff);
 	}
 	
 	public int getUsedDirEntries() {
-		return (this.data[0x24] & 0xff) + 256*(this.data[0x25] & 0xff);
+		return (this.header[0x24] & 0xff) + 256*(this.header[0x25] & 0xff);
 	}
 	
 	private String byteArrayToString(byte[] bytes) {
@@ -187,7 +266,7 @@ public class T64Format {
 	}
 	
 	public String getTapeName() {
-		byte[] d = Arrays.copyOfRange(this.data, 0x28, 0x40);
+		byte[] d = Arrays.copyOfRange(this.header, 0x28, 0x40);
 		return byteArrayToString(d);
 	}
 	
@@ -204,10 +283,14 @@ public class T64Format {
 			return null;
 		}
 		
-		int offset = 0x0040 + (0x20 * index);
-		int end = offset+32;
+		int offset = DIR_ENTRY_SIZE * index;
+		int end = offset+DIR_ENTRY_SIZE;
 		
-		byte[] rec = Arrays.copyOfRange(this.data, offset, end);
+		if (end > this.directory.length) {
+			return null; // truncated archive
+		}
+		
+		byte[] rec = Arrays.copyOfRange(this.directory, offset, end);
 		int ftype = rec[0x00] & 0xff;
 		
 		if (ftype == 0) {
@@ -216,7 +299,7 @@ public class T64Format {
 		
 		String ext = ".PRG";
 		
-		DirEntry d = new DirEntry(this.data);
+		DirEntry d = new DirEntry();
 		d.type = ftype;
 		d.type_1541 = rec[0x01] & 0xff;
 		
@@ -239,6 +322,10 @@ public class T64Format {
 	
 	public ArrayList<DirEntry> getDir() {
 		
+		if (this.dir != null) {
+			return this.dir;
+		}
+		
 		ArrayList<DirEntry> dir = new ArrayList<DirEntry>();
 		
 		for (int i=0; i<this.getMaxDirEntries(); i++) {
@@ -249,7 +336,7 @@ public class T64Format {
 		}
 		
 		// fix for bad end addresses
-		int end_offset = data.length;
+		int end_offset = (int)this.length;
 		for (int j=dir.size()-1; j>=0; j--) {
 			DirEntry d = dir.get(j);
 			if (d.end == 0xc3c6) {
@@ -259,6 +346,7 @@ public class T64Format {
 			end_offset = d.offset + d.size;
 		}
 		
+		this.dir = dir;
 		return dir;
 		
 	}
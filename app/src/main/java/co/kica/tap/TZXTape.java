@@ -4,11 +4,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import co.kica.tap.TZXTape.TZXChunk;
 
 public class TZXTape extends GenericTape {
+	public static final byte[] TAPE_MAGIC = new byte[] {'Z', 'X', 'T', 'a', 'p', 'e', '!'};
 	
 	public static final double ZXTick = 1.0/3500000.0;
 	public int minorVersion = 1;
@@ -23,12 +26,15 @@ public class TZXTape extends GenericTape {
 	public int[] blockCounts = new int[256];
 	private int coreCounter;
 	private int savePosition;
+	protected volatile int totalChunks = 0;
 	
 	public class TZXChunk {
 		public int id = 0;
 		public int pauseAfter = 1000;
 		public int dataSize = 0;
 		public byte[] chunkData;
+		public int dataOffset = 0;	// start of this block's payload within chunkData
+		public int dataLength = 0;	// payload length, chunkData may be shared between blocks
 		public int pilotPulseLength = 2168;
 		public int syncFirstPulseLength = 667;
 		public int syncSecondPulseLength = 735;
@@ -68,7 +74,7 @@ public class TZXTape extends GenericTape {
 				// reset and store into header
 				Header.reset();
 				Header.write(buff);
-				byte[] magic = new byte[] {'Z', 'X', 'T', 'a', 'p', 'e', '!'};
+				byte[] magic = TAPE_MAGIC;
 				if (Arrays.equals(getMAGIC(),magic)) {
 					System.out.println("*** File is a valid TZX by the looks of it.");
 					setValid(true);
@@ -254,6 +260,7 @@ public class TZXTape extends GenericTape {
 		}
 		
 		chunk.chunkData = new byte[size];
+		chunk.dataLength = size;
 		if (ok)
 			blockCounts[chunk.id] = blockCounts[chunk.id] + 1;
 		
@@ -301,7 +308,7 @@ public class TZXTape extends GenericTape {
 
 	@Override
 	public void writeAudioStreamData(String path, String base) {
-		IntermediateBlockRepresentation w = new IntermediateBlockRepresentation(path, base);
+		IntermediateBlockRepresentation w = newWriter(path, base);
 		w.setSampleRate(this.getTargetSampleRate());
 		
 		w.setSystem(this.getTapeType());
@@ -309,31 +316,76 @@ public class TZXTape extends GenericTape {
 		//Data.reset();
 		byte[] raw = Data.toByteArray();
 		
-		int bytesread = 0;
-		double duration = 0;
-		double cnv = 1.0;
-		
+		// read the whole tape first (loops unrolled) so it can be split up
+		ArrayList<TZXChunk> chunks = new ArrayList<TZXChunk>();
 		while (hasData()) {
 			TZXChunk chunk = getNextChunk(raw);
 			
 			//System.out.println("Got a chunk with ID "+Integer.toHexString(chunk.id)+" ("+chunk.description+") with size "+chunk.chunkData.length+" bytes.");
 			
-			try {
-				handleChunk(chunk, w);
-			} catch (Exception e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+			chunks.add(chunk);
 			
 			// store last block for &101
 			lastChunk = chunk;
 		}
 		
+		renderChunks(w, chunks);
+		
+		checkCancelled(w);
+		
 		// do cue
 		w.done();
+		renderFinished();
 
 	}
 	
+	/*
+	 * Renders the chunks into w, splitting the tape after every chunk that
+	 * ends with a pause so the pieces can render in parallel.
+	 */
+	protected void renderChunks(IntermediateBlockRepresentation w, List<TZXChunk> chunks) {
+		renderStarted();
+		totalChunks = chunks.size();
+		
+		ArrayList<ParallelRenderer.Segment> segments = new ArrayList<ParallelRenderer.Segment>();
+		int from = 0;
+		for (int i=0; i<chunks.size(); i++) {
+			if (endsWithPause(chunks.get(i)) || i == chunks.size()-1) {
+				final List<TZXChunk> part = chunks.subList(from, i+1);
+				segments.add(new ParallelRenderer.Segment() {
+					public void render(IntermediateBlockRepresentation sw) {
+						for (TZXChunk chunk: part) {
+							checkCancelled(sw);
+							int blockSamples = sw.getTotalBytes();
+							try {
+								handleChunk(chunk, sw);
+							} catch (Exception e) {
+								// TODO Auto-generated catch block
+								e.printStackTrace();
+							}
+							blockRendered(chunk.dataLength, sw.getTotalBytes() - blockSamples);
+						}
+					}
+				});
+				from = i+1;
+			}
+		}
+		
+		ParallelRenderer.render(w, segments);
+	}
+	
+	/* true if rendering the chunk finishes with addPause, which resets the ear level and timing */
+	protected boolean endsWithPause(TZXChunk chunk) {
+		switch (chunk.id) {
+		case 0x10:	return chunk.pauseAfter > 0 && chunk.dataLength > 0;
+		case 0x11:
+		case 0x14:
+		case 0x15:
+		case 0x20:	return chunk.pauseAfter > 0;
+		}
+		return false;
+	}
+	
 	public boolean hasBlock18() {
 		
 		//Data.reset();
@@ -355,7 +407,7 @@ public class TZXTape extends GenericTape {
 
 	}
 
-	private void handleChunk(TZXChunk chunk, IntermediateBlockRepresentation w) {
+	protected void handleChunk(TZXChunk chunk, IntermediateBlockRepresentation w) {
 		switch (chunk.id) {
 		case 0x10: 	handleChunk0x10(w, chunk); break;
 		case 0x11:	handleChunk0x11(w, chunk); break;
@@ -380,7 +432,9 @@ public class TZXTape extends GenericTape {
 
 	@Override
 	public float getRenderPercent() {
-		// TODO Auto-generated method stub
+		if (totalChunks > 0) {
+			return (float)getBlocksRendered()/(float)totalChunks;
+		}
 		return (float)this.dataPos/(float)this.Data.size();
 	}
 
@@ -419,14 +473,14 @@ public class TZXTape extends GenericTape {
 		
 		int sampleCount = chunk.ticksPerBit / 79;
 		
-		for (int i=0; i<chunk.chunkData.length; i++) {
+		for (int i=0; i<chunk.dataLength; i++) {
 			
 			int bc = 8;
-			if (i == chunk.chunkData.length-1) {
+			if (i == chunk.dataLength-1) {
 				bc = chunk.usedBitsLastByte;
 			}
 			
-			int b = chunk.chunkData[i] & 0xff;
+			int b = chunk.chunkData[chunk.dataOffset+i] & 0xff;
 			
 			while (bc > 0) {
 				int bit = (b & 0x80); 
@@ -449,16 +503,16 @@ public class TZXTape extends GenericTape {
 	private void writeDataBlock(IntermediateBlockRepresentation w,
 			TZXChunk chunk) {
 		
-		for (int i=0; i<chunk.chunkData.length; i++) {
+		for (int i=0; i<chunk.dataLength; i++) {
 			
 			int bc = 8;
 			int fb = 0;
-			if (i == chunk.chunkData.length-1) {
+			if (i == chunk.dataLength-1) {
 				bc = chunk.usedBitsLastByte;
 				fb = 8 - bc;
 			}
 			
-			int b = chunk.chunkData[i] & 0xff;
+			int b = chunk.chunkData[chunk.dataOffset+i] & 0xff;
 			
 			//System.out.print(Integer.toHexString(b)+" ");
 			
@@ -508,7 +562,7 @@ public class TZXTape extends GenericTape {
 	/* standard data */
 	public void handleChunk0x10( IntermediateBlockRepresentation w, TZXChunk chunk ) {
 		// write pilot
-		int flag = chunk.chunkData[0]&0xff;
+		int flag = chunk.chunkData[chunk.dataOffset]&0xff;
 		//System.out.println("Flag: "+Integer.toHexString(flag));
 		
 		if (flag >= 128) 
@@ -548,8 +602,8 @@ public class TZXTape extends GenericTape {
 	
 	/* pulse sequence */
 	public void handleChunk0x13( IntermediateBlockRepresentation w, TZXChunk chunk ) {
-		int idx = 0;
-		while (idx < chunk.chunkData.length) {
+		int idx = chunk.dataOffset;
+		while (idx < chunk.dataOffset+chunk.dataLength) {
 			int val = (chunk.chunkData[idx++] & 0xff) + 256*(chunk.chunkData[idx++] & 0xff);
 			//System.out.println("INFO: PULSE of "+val+" T-states.");
 			writePulse(w, val);
@@ -8,10 +8,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.lang.Math.*;
 
 public class UEFTape extends GenericTape {
+	public static final byte[] TAPE_MAGIC = "UEF File!\0".getBytes();
 	
 	public class UEFChunk {
 		public int id = 0;
@@ -33,7 +36,13 @@ public class UEFTape extends GenericTape {
 	private float carrierFrequency = baseFrequency*2;
 	private UEFChunk lastChunk = null;
 	
+	private int targetMachine = -1;
+	private int tapeCount = 1;
+	private int tapeSide = 0;
+	private String tapeDescription = "";
+	
 	private double fudge = 1;
+	private volatile int totalChunks = 0;
 	
 	public UEFTape() {
 		// TODO Auto-generated constructor stub
@@ -59,7 +68,7 @@ public class UEFTape extends GenericTape {
 				// reset and store into header
 				Header.reset();
 				Header.write(buff);
-				byte[] magic = "UEF File!\0".getBytes();
+				byte[] magic = TAPE_MAGIC;
 				if (Arrays.equals(getMAGIC(),magic)) {
 					System.out.println("*** File is a valid UEF by the looks of it.");
 					setValid(true);
@@ -183,8 +192,18 @@ public class UEFTape extends GenericTape {
 		return chunk;
 	}
 	
+	/* an audio chunk and the wave settings in force when the tape reaches it */
+	private class PendingChunk {
+		UEFChunk chunk;
+		UEFChunk last;
+		float baseFrequency;
+		float carrierFrequency;
+		float baudRate;
+		float phase;
+	}
+	
 	public void writeAudioStreamData( String path, String base ) {
-		IntermediateBlockRepresentation w = new IntermediateBlockRepresentation(path, base);
+		IntermediateBlockRepresentation w = newWriter(path, base);
 		
 		//Data.reset();
 		byte[] raw = Data.toByteArray();
@@ -193,41 +212,119 @@ public class UEFTape extends GenericTape {
 		double duration = 0;
 		double cnv = 1.0;
 		
+		/*
+		 * Settings chunks are handled here in order, audio chunks are queued with
+		 * the settings they need. A silence closes the current block, so the queue
+		 * is split after each one and the pieces render in parallel.
+		 */
+		ArrayList<ParallelRenderer.Segment> segments = new ArrayList<ParallelRenderer.Segment>();
+		ArrayList<PendingChunk> pending = new ArrayList<PendingChunk>();
+		renderStarted();
+		totalChunks = 0;
+		
 		while (hasData()) {
 			UEFChunk chunk = getNextChunk(raw);
 			//System.out.println("Got a chunk with ID "+Integer.toHexString(chunk.id)+" with size "+chunk.chunkData.length+" bytes.");
 			
-			try {
-				handleChunk(chunk, w);
-			} catch (Exception e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			if (isAudioChunk(chunk)) {
+				PendingChunk p = new PendingChunk();
+				p.chunk = chunk;
+				p.last = lastChunk;
+				p.baseFrequency = baseFrequency;
+				p.carrierFrequency = carrierFrequency;
+				p.baudRate = baudRate;
+				p.phase = phase;
+				pending.add(p);
+				totalChunks++;
+				
+				if (chunk.id == 0x0112 || chunk.id == 0x0116) {
+					segments.add(newSegment(pending));
+					pending = new ArrayList<PendingChunk>();
+				}
+			} else {
+				try {
+					handleChunk(chunk, w);
+				} catch (Exception e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
 			}
 			
 			// store last block for &101
 			lastChunk = chunk;
 		}
 		
+		if (pending.size() > 0) {
+			segments.add(newSegment(pending));
+		}
+		
+		ParallelRenderer.render(w, segments);
+		
+		checkCancelled(w);
+		
 		// do cue
 		w.done();
+		renderFinished();
 		
 		//return w;
 	}
 	
+	/* chunks that write to the stream rather than change settings */
+	private boolean isAudioChunk(UEFChunk chunk) {
+		switch (chunk.id) {
+		case 0x0100:
+		case 0x0101:
+		case 0x0102:
+		case 0x0104:
+		case 0x0110:
+		case 0x0111:
+		case 0x0112:
+		case 0x0114:
+		case 0x0116:	return true;
+		}
+		return false;
+	}
+	
+	/* renders queued chunks on a scratch tape so segments don't share wave settings */
+	private ParallelRenderer.Segment newSegment(final List<PendingChunk> chunks) {
+		return new ParallelRenderer.Segment() {
+			public void render(IntermediateBlockRepresentation sw) {
+				UEFTape t = new UEFTape();
+				for (PendingChunk p: chunks) {
+					t.lastChunk = p.last;
+					t.baseFrequency = p.baseFrequency;
+					t.carrierFrequency = p.carrierFrequency;
+					t.baudRate = p.baudRate;
+					t.phase = p.phase;
+					checkCancelled(sw);
+					int blockSamples = sw.getTotalBytes();
+					try {
+						t.handleChunk(p.chunk, sw);
+					} catch (Exception e) {
+						// TODO Auto-generated catch block
+						e.printStackTrace();
+					}
+					blockRendered(p.chunk.chunkData.length, sw.getTotalBytes() - blockSamples);
+				}
+			}
+		};
+	}
+	
+	/* writes count cycles at the given frequency using the current wave phase */
+	private void cycles(IntermediateBlockRepresentation w, double frequency, long count) {
+		double cycleduration = 1000000.0 / frequency;
+		w.addSquareWaves(cycleduration, PULSE_AMPLITUDE, PULSE_REST, count, phase);
+	}
+	
 	private void zeroBit(IntermediateBlockRepresentation w) {
 		if (baudRate == 1200) {
 			// 1 cycle high low at base frequency
-			double cycleduration = 1000000.0 / baseFrequency;
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
+			cycles(w, baseFrequency, 1);
 			//System.out.print("0");
 		}
 		else if (baudRate == 300) {
 			// 4 cycles high low at base frequency
-			double cycleduration = 1000000.0 / baseFrequency;
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
+			cycles(w, baseFrequency, 4);
 			//System.out.print("0");
 		}
 	}
@@ -235,22 +332,12 @@ public class UEFTape extends GenericTape {
 	private void oneBit(IntermediateBlockRepresentation w) {
 		if (baudRate == 1200) {
 			// 2 cycle high low at base frequency
-			double cycleduration = 1000000.0 / (2*baseFrequency);
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
+			cycles(w, 2*baseFrequency, 2);
 			//System.out.print("1");
 		}
 		else if (baudRate == 300) {
 			// 8 cycles high low at base frequency
-			double cycleduration = 1000000.0 / (2*baseFrequency);
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
+			cycles(w, 2*baseFrequency, 8);
 			//System.out.print("1");
 		}
 	}
@@ -312,10 +399,7 @@ public class UEFTape extends GenericTape {
 		int cycles = wordFromChunk(chunk);
 		System.out.println("CARRIER TONE "+cycles+" cycles...");
 		
-		double cycleduration = 1000000.0 / carrierFrequency;
-		for (int i=0; i<cycles; i++) {
-			w.addSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST);
-		}
+		cycles(w, carrierFrequency, cycles);
 	}
 	
 	private void handleChunk0111(UEFChunk chunk, IntermediateBlockRepresentation w) {
@@ -326,10 +410,7 @@ public class UEFTape extends GenericTape {
 		System.out.println("CARRIER TONE WITH DUMMY BYTE...");
 		
 		// lead carrier
-		double cycleduration_before = 1000000.0 / carrierFrequency;
-		for (int i=0; i<cycles_before; i++) {
-			w.addSquareWave(cycleduration_before, PULSE_AMPLITUDE, PULSE_REST);
-		}
+		cycles(w, carrierFrequency, cycles_before);
 		
 		// dummy byte
 		// start bit
@@ -349,10 +430,7 @@ public class UEFTape extends GenericTape {
 		oneBit(w);
 		
 		// trailing carrier
-		double cycleduration_after = 1000000.0 / carrierFrequency;
-		for (int i=0; i<cycles_after; i++) {
-			w.addSquareWave(cycleduration_after, PULSE_AMPLITUDE, PULSE_REST);
-		}
+		cycles(w, carrierFrequency, cycles_after);
 	}
 	
 	private void handleChunk0112(UEFChunk chunk, IntermediateBlockRepresentation w) {
@@ -375,34 +453,20 @@ public class UEFTape extends GenericTape {
 	}
 	
 	private float floatFromChunk( UEFChunk chunk ) {
-		/* assume a four byte array named Float exists, where Float[0]
-		was the first byte read from the UEF, Float[1] the second, etc */
-
-		int[] Float = new int[4];
-		Float[0] = chunk.chunkData[0] & 0xFF;
-		Float[1] = chunk.chunkData[1] & 0xFF;
-		Float[2] = chunk.chunkData[2] & 0xFF;
-		Float[3] = chunk.chunkData[3] & 0xFF;
-		
-		/* decode mantissa */
-		int Mantissa;
-		Mantissa = Float[0] | (Float[1] << 8) | ((Float[2]&0x7f)|0x80) << 16;
-
-		float Result = (float)Mantissa;
-		Result = (float)ldexp(Result, -23);
-
-		/* decode exponent */
-		int Exponent;
-		Exponent = ((Float[2]&0x80) >> 7) | (Float[3]&0x7f) << 1;
-		Exponent -= 127;
-		Result = (float)ldexp(Result, Exponent);
-
-		/* flip sign if necessary */
-		if((Float[3]&0x80) > 0)
-			Result = -Result;
-
-		/* floating point number is now in 'Result' */
-		return Result;
+		/* UEF floats are little endian IEEE 754 singles */
+		int bits = (chunk.chunkData[0] & 0xFF) 
+				| (chunk.chunkData[1] & 0xFF) << 8 
+				| (chunk.chunkData[2] & 0xFF) << 16 
+				| (chunk.chunkData[3] & 0xFF) << 24;
+		return Float.intBitsToFloat(bits);
+	}
+	
+	private String stringFromChunk( UEFChunk chunk, int offset ) {
+		int end = offset;
+		while (end < chunk.chunkData.length && chunk.chunkData[end] != 0) {
+			end++;
+		}
+		return byteArrayToString(Arrays.copyOfRange(chunk.chunkData, offset, end));
 	}
 	
 	private String byteArrayToString(byte[] bytes) {
@@ -420,6 +484,10 @@ public class UEFTape extends GenericTape {
 		// TODO Auto-generated method stub
 		switch (chunk.id) {
 		case 0x0000:	System.out.println("SOURCE: ["+byteArrayToString(chunk.chunkData)+"]"); break;
+		case 0x0001:	// game instructions
+		case 0x0003:	// inlay scan
+		case 0x0120:	break; // position marker
+		case 0x0005:	handleChunk0005(chunk,w); break;
 		case 0x0100: 	handleChunk0100(chunk,w); break;
 		case 0x0101:	handleChunk0101(chunk,w); break;
 		case 0x0102:	handleChunk0102(chunk,w); break;
@@ -432,13 +500,38 @@ public class UEFTape extends GenericTape {
 		case 0x0115:	handleChunk0115(chunk,w); break;
 		case 0x0116:	handleChunk0116(chunk,w); break;
 		case 0x0117:	handleChunk0117(chunk,w); break;
+		case 0x0130:	handleChunk0130(chunk,w); break;
+		case 0x0131:	handleChunk0131(chunk,w); break;
 		default: throw new Exception("Unhandled chunk type "+Integer.toHexString(chunk.id));
 		}
 	}
 
+	/* phase change, the phase (in degrees) every following cycle starts at */
 	private void handleChunk0115(UEFChunk chunk, IntermediateBlockRepresentation w) {
-		// TODO Auto-generated method stub
-		
+		this.phase = wordFromChunk(chunk) % 360;
+	}
+	
+	/* target machine, low nibble is the machine, high nibble the keyboard layout */
+	private void handleChunk0005(UEFChunk chunk, IntermediateBlockRepresentation w) {
+		this.targetMachine = chunk.chunkData[0] & 0x0F;
+		System.out.println("TARGET MACHINE "+targetMachine);
+	}
+	
+	/* tape set info: vocabulary, number of tapes in the set, channels per tape */
+	private void handleChunk0130(UEFChunk chunk, IntermediateBlockRepresentation w) {
+		if (chunk.chunkData.length >= 2) {
+			this.tapeCount = chunk.chunkData[1] & 0xFF;
+		}
+		System.out.println("TAPE SET OF "+tapeCount+" TAPE(S)");
+	}
+	
+	/* start of tape side: tape id (bit 7 set for side B), channel, optional description */
+	private void handleChunk0131(UEFChunk chunk, IntermediateBlockRepresentation w) {
+		this.tapeSide = chunk.chunkData[0] & 0xFF;
+		if (chunk.chunkData.length > 2) {
+			this.tapeDescription = stringFromChunk(chunk, 2);
+		}
+		System.out.println("TAPE "+(tapeSide & 0x7F)+((tapeSide & 0x80) != 0 ? " SIDE B" : " SIDE A")+" ["+tapeDescription+"]");
 	}
 
 	private void handleChunk0116(UEFChunk chunk, IntermediateBlockRepresentation w) {
@@ -451,6 +544,7 @@ public class UEFTape extends GenericTape {
 		float f = floatFromChunk(chunk);
 		System.out.println("Changing frequency to "+f+"Hz");		
 		baseFrequency = f;	
+		carrierFrequency = baseFrequency*2;
 	}
 	
 	private void handleChunk0101(UEFChunk chunk, IntermediateBlockRepresentation w) {	
@@ -486,8 +580,30 @@ public class UEFTape extends GenericTape {
 	}
 	
 	private void handleChunk0114(UEFChunk chunk, IntermediateBlockRepresentation w) {
-		/* TODO: implement security cycles */
+		/*
+			3 bytes number of cycles, then 'P' or 'W' for the first and last
+			cycle, then one bit per cycle msb first. A one is a cycle at the
+			carrier frequency, a zero a cycle at the base frequency. 'P' means
+			only half of that cycle is output, the second half for the first
+			cycle and the first half for the last one.
+		 */
 		int numCycles = triWordFromChunk( chunk, 0 );
+		boolean firstPulse = (chunk.chunkData[3] == 'P');
+		boolean lastPulse = (chunk.chunkData[4] == 'P');
+		
+		for (int i=0; i<numCycles; i++) {
+			int bit = (chunk.chunkData[5 + (i >> 3)] >> (7 - (i & 7))) & 1;
+			double frequency = (bit == 1) ? carrierFrequency : baseFrequency;
+			double cycleduration = 1000000.0 / frequency;
+			
+			if (i == 0 && firstPulse) {
+				w.addHalfSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST, phase, true);
+			} else if (i == numCycles-1 && lastPulse) {
+				w.addHalfSquareWave(cycleduration, PULSE_AMPLITUDE, PULSE_REST, phase, false);
+			} else {
+				w.addSquareWaves(cycleduration, PULSE_AMPLITUDE, PULSE_REST, 1, phase);
+			}
+		}
 	}
 
 	private void handleChunk0104(UEFChunk chunk, IntermediateBlockRepresentation w) {
@@ -552,10 +668,31 @@ public class UEFTape extends GenericTape {
 		return "UEF";
 	}
 
+	public int getTargetMachine() {
+		return targetMachine;
+	}
+
+	public int getTapeCount() {
+		return tapeCount;
+	}
+
+	public int getTapeSide() {
+		return tapeSide;
+	}
+
+	public String getTapeDescription() {
+		return tapeDescription;
+	}
+
 	@Override
 	public float getRenderPercent() {
-		// TODO Auto-generated method stub
-		return (float)dataPos / (float)Data.size();
+		if (hasData()) {
+			return 0f;
+		}
+		if (totalChunks == 0) {
+			return 1f;
+		}
+		return (float)getBlocksRendered() / (float)totalChunks;
 	}
 
 }
@@ -0,0 +1,215 @@
+package co.kica.tap;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/*
+ * Writes a render out as one WAV file without holding any block in memory.
+ * 8 bit block files are copied channel to channel, BlockCodec blocks are
+ * decoded a buffer at a time, silences come from a
+ * shared page of silence, and 16 bit output is converted a buffer at a time.
+ * The sizes are known from the manifest before anything is written, so the
+ * header goes first and the file is written in one pass.  Files too big for
+ * a RIFF header are written as RF64.
+ */
+public class WavExporter {
+
+	public static final int PAGE_SIZE = 65536;
+	public static final long RIFF_LIMIT = 0x7fffffffL;
+
+	private static final ByteBuffer SILENCE_8;
+	private static final ByteBuffer SILENCE_16;
+
+	static {
+		byte[] page = new byte[PAGE_SIZE];
+		for (int i=0; i<page.length; i++) {
+			page[i] = (byte)0x80;
+		}
+		SILENCE_8 = ByteBuffer.wrap(page).asReadOnlyBuffer();
+		SILENCE_16 = ByteBuffer.allocate(PAGE_SIZE).asReadOnlyBuffer();
+	}
+
+	private IntermediateBlockRepresentation ibr;
+	private int bitsPerSample = 8;
+	private boolean header = true;
+
+	public WavExporter( IntermediateBlockRepresentation ibr ) {
+		this.ibr = ibr;
+	}
+
+	/* 8 (unsigned, as rendered) or 16 (signed little endian) */
+	public void setBitsPerSample( int bits ) {
+		if (bits != 8 && bits != 16) {
+			throw new IllegalArgumentException("Unsupported sample size "+bits);
+		}
+		this.bitsPerSample = bits;
+	}
+
+	public int getBitsPerSample() {
+		return bitsPerSample;
+	}
+
+	/* false writes headerless PCM, as toRawAudio always did */
+	public void setHeader( boolean header ) {
+		this.header = header;
+	}
+
+	/* samples in the render, silences included */
+	public long getSampleCount() {
+		long samples = 0;
+		for (int i=1; i<=ibr.getTotalBlocks(); i++) {
+			samples += blockSamples(i);
+		}
+		return samples;
+	}
+
+	private long blockSamples( int index ) {
+		if (ibr.blockType(index).equals("DATA") && !BlockCodec.isEncoded(ibr.blockSource(index))) {
+			return new File(ibr.blockSource(index)).length();
+		}
+		return ibr.blockDuration(index);
+	}
+
+	/* writes the file, returns its length in bytes */
+	public long export( File out ) throws IOException {
+		int bytesPerSample = bitsPerSample / 8;
+		long dataSize = getSampleCount() * bytesPerSample;
+
+		FileOutputStream fos = new FileOutputStream(out);
+		try {
+			FileChannel ch = fos.getChannel();
+
+			if (header) {
+				writeFully(ch, buildHeader(dataSize));
+			}
+
+			ByteBuffer in = ByteBuffer.allocateDirect(PAGE_SIZE / 2);
+			ByteBuffer conv = (bitsPerSample == 16) ? ByteBuffer.allocateDirect(PAGE_SIZE).order(ByteOrder.LITTLE_ENDIAN) : null;
+
+			for (int i=1; i<=ibr.getTotalBlocks(); i++) {
+				if (ibr.blockType(i).equals("DATA")) {
+					String source = ibr.blockSource(i);
+					FileInputStream fis = new FileInputStream(source);
+					try {
+						ReadableByteChannel src = fis.getChannel();
+						if (BlockCodec.isEncoded(source)) {
+							long length = fis.getChannel().size();
+							src = Channels.newChannel(new BlockCodec.Decoder(new BufferedInputStream(fis, PAGE_SIZE), length));
+						}
+						if (bitsPerSample == 16) {
+							convert(src, ch, in, conv);
+						} else if (src instanceof FileChannel) {
+							copy((FileChannel)src, ch);
+						} else {
+							copy(src, ch, in);
+						}
+					} finally {
+						fis.close();
+					}
+				} else {
+					silence(ch, (long)ibr.blockDuration(i) * bytesPerSample);
+				}
+			}
+
+			// chunks are word aligned
+			if (header && (dataSize & 1) != 0) {
+				writeFully(ch, ByteBuffer.wrap(new byte[] { 0 }));
+			}
+
+			return ch.position();
+		} finally {
+			fos.close();
+		}
+	}
+
+	private ByteBuffer buildHeader( long dataSize ) {
+		int rate = ibr.getRenderedSampleRate();
+		int blockAlign = bitsPerSample / 8;
+		long padded = dataSize + (dataSize & 1);
+		boolean rf64 = (padded + 36) > RIFF_LIMIT;
+
+		ByteBuffer h = ByteBuffer.allocate(rf64 ? 80 : 44).order(ByteOrder.LITTLE_ENDIAN);
+		if (rf64) {
+			h.put("RF64".getBytes()).putInt(-1).put("WAVE".getBytes());
+			h.put("ds64".getBytes()).putInt(28);
+			h.putLong(padded + 72);			// RIFF size
+			h.putLong(dataSize);
+			h.putLong(dataSize / blockAlign);	// sample frames
+			h.putInt(0);						// no table
+		} else {
+			h.put("RIFF".getBytes()).putInt((int)(padded + 36)).put("WAVE".getBytes());
+		}
+
+		h.put("fmt ".getBytes()).putInt(16);
+		h.putShort((short)1);					// PCM
+		h.putShort((short)1);					// mono
+		h.putInt(rate);
+		h.putInt(rate * blockAlign);
+		h.putShort((short)blockAlign);
+		h.putShort((short)bitsPerSample);
+
+		h.put("data".getBytes()).putInt(rf64 ? -1 : (int)dataSize);
+		h.flip();
+		return h;
+	}
+
+	private static void writeFully( FileChannel ch, ByteBuffer b ) throws IOException {
+		while (b.hasRemaining()) {
+			ch.write(b);
+		}
+	}
+
+	private static void copy( FileChannel src, FileChannel dst ) throws IOException {
+		long size = src.size();
+		long pos = 0;
+		while (pos < size) {
+			long n = src.transferTo(pos, size - pos, dst);
+			if (n <= 0) {
+				throw new IOException("Short block file");
+			}
+			pos += n;
+		}
+	}
+
+	private static void copy( ReadableByteChannel src, FileChannel dst, ByteBuffer buf ) throws IOException {
+		buf.clear();
+		while (src.read(buf) != -1) {
+			buf.flip();
+			writeFully(dst, buf);
+			buf.clear();
+		}
+	}
+
+	/* unsigned 8 bit to signed 16 bit */
+	private static void convert( ReadableByteChannel src, FileChannel dst, ByteBuffer in, ByteBuffer out ) throws IOException {
+		in.clear();
+		while (src.read(in) != -1) {
+			in.flip();
+			out.clear();
+			while (in.hasRemaining()) {
+				out.putShort((short)(((in.get() & 0xff) - 128) << 8));
+			}
+			out.flip();
+			writeFully(dst, out);
+			in.clear();
+		}
+	}
+
+	private void silence( FileChannel ch, long bytes ) throws IOException {
+		ByteBuffer page = (bitsPerSample == 16 ? SILENCE_16 : SILENCE_8).duplicate();
+		while (bytes > 0) {
+			page.clear();
+			page.limit((int)Math.min(bytes, page.capacity()));
+			bytes -= page.remaining();
+			writeFully(ch, page);
+		}
+	}
+}
@@ -1,11 +1,12 @@
 package co.kica.tap;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.DataInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Arrays;
+import java.util.ArrayList;
+
+import co.kica.fileutils.SmartFile;
+import co.kica.fileutils.SmartFileInputStream;
 
 /* This format is a catch-all for spectrum Tape format */
 
@@ -13,6 +14,32 @@ public class ZXTAP extends TZXTape {
 	
 	public final int PAUSE = 1000;
 	public final byte TZXBLOCK = 0x10;
+	public final byte TZXTURBOBLOCK = 0x11;
+	
+	/* loader models recorded in the manifest, -1 matches the C64 ROM loader convention */
+	public static final int LOADER_ROM = -1;
+	public static final int LOADER_ACCELERATED = 1;
+	
+	/*
+	 * Accelerated timings (T-states). The ROM LD-BYTES routine decides a bit by
+	 * counting LD-EDGE loops over both half pulses, the 0/1 threshold sits at
+	 * roughly 2300T per bit and the timeout at roughly 5400T. Standard timings use
+	 * 1710T/3420T per bit, these use 1224T/2900T which keeps a wide margin either
+	 * side of the threshold even after quantizing to 44.1Khz samples (~79T).
+	 * The pilot only has to outlast the ROM's ~1s settle delay plus 256 leader
+	 * pulses, so 2400 pulses (~1.5s) replaces the 8063/3223 pulse pilots.
+	 */
+	public static final int ACCEL_PILOT_PULSE = 2168;
+	public static final int ACCEL_SYNC1_PULSE = 667;
+	public static final int ACCEL_SYNC2_PULSE = 735;
+	public static final int ACCEL_ZERO_PULSE = 612;
+	public static final int ACCEL_ONE_PULSE = 1450;
+	public static final int ACCEL_PILOT_COUNT = 2400;
+	public static final int ACCEL_PAUSE = 400;
+	
+	private boolean accelerated = false;
+	private byte[] raw = new byte[0];
+	private ArrayList<TZXChunk> blocks = new ArrayList<TZXChunk>();
 	
 	public ZXTAP(int sampleRate) {
 		super(sampleRate);
@@ -20,54 +47,40 @@ public class ZXTAP extends TZXTape {
 
 	@Override
 	public void Load( String fn ) {
-		// we cheat here this reads in the file, and maps it into TZXChunks (type $10)
+		// we cheat here, the file is read once and each TAP block is described as a
+		// TZXChunk (type $10, or $11 when accelerated) pointing into the file data
 		this.setValid(false);
 		
-		File f = new File(fn);
-		long totalSize = f.length();
-		
+		SmartFile f = new SmartFile(fn);
+		blocks.clear();
 		try {
-			FileInputStream fis = new FileInputStream( f );
-			Data.reset();
-			byte[] dataSize = new byte[2]; // header size...
-			long bytesRead = 0;
+			raw = new byte[(int)f.length()];
+			DataInputStream dis = new DataInputStream( new SmartFileInputStream( f ) );
+			dis.readFully(raw);
+			dis.close();
+			
 			boolean err = false;
-			int r;
-			byte[] pause = new byte[2];
-			pause[0] = (byte)(PAUSE % 256);
-			pause[1] = (byte)(PAUSE / 256);
+			int pos = 0;
 			
-			while (bytesRead < totalSize && !err) {
+			while (pos < raw.length && !err) {
 				// read size of chunk
-				r = fis.read(dataSize);
-				if (r == 2) {
-					// got header
-					bytesRead += r;
-					int count = (dataSize[0] & 0xff) + (dataSize[1] & 0xff)*256;
-					System.out.println("Block header says block is "+count+" bytes...");
-					byte[] chunk = new byte[count];
-					r = fis.read(chunk);
-					if (r != count) {
-						err = true;
-						System.out.println("!!! Block is only "+r+" bytes...");
-						break;
-					} else {
-						System.out.println("*** Block is correctly "+r+" bytes...");
-					}
-					bytesRead +=  r;
-					// here if block data ok
-					Data.write(TZXBLOCK);
-					Data.write(pause);
-					Data.write(dataSize);
-					Data.write(chunk);
-					
-					System.out.println("Converted TAP block to TZX(10h) block...");
-				} else {
+				if (pos + 2 > raw.length) {
+					err = true;
+					break;
+				}
+				int count = (raw[pos] & 0xff) + (raw[pos+1] & 0xff)*256;
+				pos += 2;
+				if (pos + count > raw.length) {
+					System.out.println("!!! Block is only "+(raw.length-pos)+" of "+count+" bytes...");
 					err = true;
+					break;
 				}
+				// here if block data ok
+				blocks.add(newBlock(pos, count));
+				pos += count;
 			}
 			
-			fis.close();
+			System.out.println("*** Read in "+blocks.size()+" TAP blocks");
 			
 			this.setValid(!err);
 		} catch (FileNotFoundException e) {
@@ -79,4 +92,69 @@ public class ZXTAP extends TZXTape {
 		}
 	}
 	
+	/* describes a TAP block as a standard ($10) or accelerated turbo ($11) chunk */
+	private TZXChunk newBlock( int offset, int count ) {
+		TZXChunk chunk = new TZXChunk();
+		chunk.chunkData = raw;
+		chunk.dataOffset = offset;
+		chunk.dataLength = count;
+		if (accelerated) {
+			chunk.id = TZXTURBOBLOCK;
+			chunk.pilotPulseLength = ACCEL_PILOT_PULSE;
+			chunk.syncFirstPulseLength = ACCEL_SYNC1_PULSE;
+			chunk.syncSecondPulseLength = ACCEL_SYNC2_PULSE;
+			chunk.zeroBitPulseLength = ACCEL_ZERO_PULSE;
+			chunk.oneBitPulseLength = ACCEL_ONE_PULSE;
+			chunk.pilotPulseCount = ACCEL_PILOT_COUNT;
+			chunk.pauseAfter = ACCEL_PAUSE;
+		} else {
+			chunk.id = TZXBLOCK;
+			chunk.pauseAfter = PAUSE;
+		}
+		return chunk;
+	}
+	
+	@Override
+	public void writeAudioStreamData( String path, String base ) {
+		IntermediateBlockRepresentation w = newWriter(path, base);
+		w.setSampleRate(this.getTargetSampleRate());
+		w.setSystem(this.getTapeType());
+		w.setLoaderType(getLoadModel());
+		
+		renderChunks(w, blocks);
+		
+		checkCancelled(w);
+		
+		// do cue
+		w.done();
+		renderFinished();
+	}
+	
+	@Override
+	public float getRenderPercent() {
+		if (blocks.size() == 0) {
+			return 1f;
+		}
+		return (float)getBlocksRendered() / (float)blocks.size();
+	}
+	
+	public ArrayList<TZXChunk> getBlocks() {
+		return blocks;
+	}
+
+	public boolean isAccelerated() {
+		return accelerated;
+	}
+
+	public void setAccelerated(boolean accelerated) {
+		this.accelerated = accelerated;
+	}
+	
+	public int getLoadModel() {
+		if (accelerated) {
+			return LOADER_ACCELERATED;
+		}
+		return LOADER_ROM;
+	}
+	
 }
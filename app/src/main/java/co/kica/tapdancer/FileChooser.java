@@ -113,14 +113,18 @@ public class FileChooser extends ListActivity {
                     dir.add(new Option(ff.getName(),"Folder",ff.getAbsolutePath()));
                 } else
                 {
-                	if (ff.getName().endsWith(".TAP") || ff.getName().endsWith(".tap") || 
-                			ff.getName().endsWith(".CAS") || ff.getName().endsWith(".cas") || 
-                			ff.getName().endsWith(".UEF") || ff.getName().endsWith(".uef") || 
-                			ff.getName().endsWith(".PRG") || ff.getName().endsWith(".prg") || 
-                			ff.getName().endsWith(".P00") || ff.getName().endsWith(".p00") || 
-                			ff.getName().endsWith(".T64") || ff.getName().endsWith(".t64") || 
-                			ff.getName().endsWith(".TZX") || ff.getName().endsWith(".tzx") || 
-                			ff.getName().endsWith(".CDT") || ff.getName().endsWith(".cdt")	) {
+                	// gzipped tapes are inflated by the loaders, programs aren't
+                	String name = ff.getName();
+                	if (name.matches("(?i).*\\.(tap|cas|uef|tzx|cdt)\\.gz$"))
+                		name = name.substring(0, name.length()-3);
+                	if (name.endsWith(".TAP") || name.endsWith(".tap") || 
+                			name.endsWith(".CAS") || name.endsWith(".cas") || 
+                			name.endsWith(".UEF") || name.endsWith(".uef") || 
+                			name.endsWith(".PRG") || name.endsWith(".prg") || 
+                			name.endsWith(".P00") || name.endsWith(".p00") || 
+                			name.endsWith(".T64") || name.endsWith(".t64") || 
+                			name.endsWith(".TZX") || name.endsWith(".tzx") || 
+                			name.endsWith(".CDT") || name.endsWith(".cdt")	) {
                 		
                 		if (ff.getName().charAt(0) != '.')
                 			fls.add(new Option(ff.getName(),"File Size: "+kb(ff)+"Kb",ff.getAbsolutePath()));
@@ -163,7 +167,7 @@ public class FileChooser extends ListActivity {
         // create an intent so that we can display the render...
     	
     	if (o.getPath().toUpperCase().endsWith(".T64")) {
-    		T64Format t64 = new T64Format(o.getPath(), true);
+    		T64Format t64 = T64Format.open(o.getPath(), true);
     		if (!t64.validHeader()) {
     			Intent intent = new Intent(this, RenderActivity.class);
     			intent.putExtra(PICKED_MESSAGE, o.getPath());
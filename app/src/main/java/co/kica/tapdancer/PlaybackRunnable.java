@@ -202,6 +202,8 @@ public class PlaybackRunnable implements Runnable {
 				
 					// send position
 					chunk = cue.nextBuffer();
+					// a tape still rendering grows as it plays
+					this.length = cue.getLength();
 					//cue.getCurrentBuffer();
 				}
 				
@@ -44,6 +44,9 @@ public class RenderActivity extends Activity {
 			else if (message.arg1 == RESULT_OK && outputpath != null) {
 				//Toast.makeText(RenderActivity.this, "Audio Ready", Toast.LENGTH_LONG).show();
 				// move to another activity
+				// the render may still be finishing off behind playback, leave it running
+				task = null;
+				renderer = null;
 				// start playback service
 				Intent intent = new Intent(RenderActivity.this, PlayActivity.class);
 				intent.putExtra("wavfile", outputpath.toString());
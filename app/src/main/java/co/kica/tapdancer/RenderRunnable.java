@@ -2,8 +2,6 @@ package co.kica.tapdancer;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.security.MessageDigest;
 
 import android.app.Activity;
 import android.content.SharedPreferences;
@@ -14,15 +12,16 @@ import android.os.Messenger;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-import co.kica.fileutils.SmartFileInputStream;
-import co.kica.tap.AtariTape;
 import co.kica.tap.C64Program;
-import co.kica.tap.C64Tape;
+import co.kica.tap.CancellationToken;
+import co.kica.tap.ContentKey;
+import co.kica.tap.FormatRegistry;
 import co.kica.tap.GenericTape;
-import co.kica.tap.IntermediateBlockRepresentation;
-import co.kica.tap.MSXTape;
-import co.kica.tap.TZXTape;
-import co.kica.tap.UEFTape;
+import co.kica.tap.LiveRender;
+import co.kica.tap.RenderCache;
+import co.kica.tap.RenderCancelledException;
+import co.kica.tap.RenderKey;
+import co.kica.tap.RenderListener;
 import co.kica.tap.ZXTAP;
 
 public class RenderRunnable implements Runnable {
@@ -32,6 +31,8 @@ public class RenderRunnable implements Runnable {
 	private int result = Activity.RESULT_CANCELED;
 	public boolean signal = true;
 	private int index;
+	private boolean handedOff = false;
+	private CancellationToken cancellation = new CancellationToken();
 
 	public RenderRunnable( RenderActivity mActivity, String tapfile, int idx ) {
 		this.tapfile = tapfile;
@@ -39,8 +40,12 @@ public class RenderRunnable implements Runnable {
 		this.index = idx;
 	}
 	
-	public void cancel() {
+	/* stops the render at its next block, unless it is already being played */
+	public synchronized void cancel() {
 		this.signal = false;
+		if (!handedOff) {
+			cancellation.cancel();
+		}
 	}
 	
 	@Override
@@ -54,6 +59,9 @@ public class RenderRunnable implements Runnable {
 			sr = 22050;
 		}
 		
+		boolean zxAccelerated = sharedPrefs.getBoolean("prefZXTapAccelerated", false);
+		boolean progressive = sharedPrefs.getBoolean("prefProgressivePlayback", true);
+		
 		String tapfile = this.tapfile;
 		//String fn = (new File(tapfile)).getName().replace(".tap", ".wav").replace(".TAP", ".wav").replace(".CAS", ".wav").replace(".cas", ".wav");
 		
@@ -75,131 +83,93 @@ public class RenderRunnable implements Runnable {
 		
 		//String outputpath = (new File( Environment.getExternalStorageDirectory(), fn )).getAbsolutePath();
 		String md5 = "0000000000000000000000000000000";
+		String digest = null;
 				
 		try {
-			md5 = getMD5DigestForFile(tapfile);
+			md5 = ContentKey.forIndex(new File(outputdir+"/.keys")).keyFor(tapfile);
+			digest = md5;
 		} catch (Exception e2) {
 			// TODO Auto-generated catch block
 			Log.w(getClass().getName(), "Exceptions generating file checksum ", e2);
 		}
 		
-		if (index > 0)
-			md5 = md5 + "."+Integer.toHexString(index);
-		
-		String outputpath = outputdir+"/"+md5+".manifest";
-		String baseName = md5;
 		String basePath = outputdir;
+		long budget = Long.parseLong(sharedPrefs.getString("prefRenderCacheMB", "256")) * 1024L * 1024L;
+		RenderCache cache = RenderCache.forDir(od, budget);
+		int o_type = Integer.parseInt(sharedPrefs.getString("prefPRGLoaderType", "1"));
 		
-		File f = new File(outputpath);
+		// sniff the format from the file's first bytes, only the winner loads it
+		FormatRegistry.Format format = FormatRegistry.detect(tapfile, digest);
+		Log.i(getClass().getName(), "Detected format "+format.getName());
 		
-		// make PRG / T64 re-render if the option has changed
-		if (f.exists()) {
-			String type = sharedPrefs.getString("prefPRGLoaderType", "1");
-			int o_type = Integer.parseInt(type);
-			
-			if (tapfile.toLowerCase().contains(".prg") || tapfile.toLowerCase().contains(".p00") ||
-					tapfile.toLowerCase().contains(".t64")) {
-				// check if it was with the same loader
-				IntermediateBlockRepresentation ibr = new IntermediateBlockRepresentation(basePath, baseName);
-				if (ibr.getLoaderType() != o_type) {
-					f.delete();
-				}
-				ibr = null;
-				System.gc();
-			} else if (tapfile.toLowerCase().contains(".tzx") || tapfile.toLowerCase().contains(".tap")) {
-				IntermediateBlockRepresentation ibr = new IntermediateBlockRepresentation(basePath, baseName);
-				if (ibr.getRenderedSampleRate() != sr) {
-					f.delete();
-				}
-				ibr = null;
-				System.gc();
-			}
+		// each combination of render settings is kept as its own render
+		RenderKey key = RenderKey.create(md5, index, format, sr, o_type, zxAccelerated);
+		String baseName = key.getBaseName();
+		String outputpath = outputdir+"/"+baseName+".manifest";
+		
+		// a render handed off earlier keeps going after playback stops, opening the tape again joins it
+		LiveRender running = LiveRender.get(basePath, baseName);
+		
+		// checked before the lookup so a render that is thrown away isn't counted as a hit
+		if (running == null && cache.getManifest(baseName).exists() && !key.matches(basePath, baseName)) {
+			Log.w(getClass().getName(), "Render "+baseName+" was made with other settings, replacing it");
+			cache.remove(baseName);
 		}
 		
-		if (!f.exists()) {
+		if (running != null && running.waitFor(1)) {
+			Log.i(getClass().getName(), "Render of "+baseName+" is still being written, playing it");
+			result = Activity.RESULT_OK;
+		} else if (!cache.lookup(baseName)) {
 		
-			Log.i(getClass().getName(), "Rendering audio to "+outputpath);
+			Log.i(getClass().getName(), "Rendering audio to "+outputpath+" "+key.getVariant());
 			
 			try {
-				C64Tape tap = new C64Tape();
-				tap.Load(tapfile);
-				if (tap.isValid()) {
-					Thread t = new Thread(new RenderPercentPublisher(tap, this));
-					t.start();
-					tap.writeAudioStreamData(basePath, baseName);
-					result = Activity.RESULT_OK;
-				} else {
-					tap = null;
-					MSXTape msx = new MSXTape();
-					msx.Load(tapfile);
-					if (msx.isValid()) {
-						Thread t = new Thread(new RenderPercentPublisher(msx, this));
-						t.start();
-						msx.writeAudioStreamData(basePath, baseName);
-						result = Activity.RESULT_OK;
-					} else {
-						msx = null;
-						
-						UEFTape uef = new UEFTape();
-						uef.Load(tapfile);
-						if (uef.isValid()) {
-							Thread t = new Thread(new RenderPercentPublisher(uef, this));
-							t.start();
-							uef.writeAudioStreamData(basePath, baseName);
-							result = Activity.RESULT_OK;
-						} else {
-							uef = null;
-							
-							TZXTape tzx = new TZXTape(sr);
-							tzx.Load(tapfile);
-							if (tzx.isValid()) {
-								Thread t = new Thread(new RenderPercentPublisher(tzx, this));
-								t.start();
-								tzx.writeAudioStreamData(basePath, baseName);
-								result = Activity.RESULT_OK;
-							} else {
-								AtariTape fuji = new AtariTape();
-								fuji.Load(tapfile);
-								if (fuji.isValid()) {
-									Thread t = new Thread(new RenderPercentPublisher(fuji, this));
-									t.start();
-									fuji.writeAudioStreamData(basePath, baseName);
-									result = Activity.RESULT_OK;
-								} else {
-									fuji = null;
-									if (tapfile.toLowerCase().contains(".prg") ||
-											tapfile.toLowerCase().contains(".t64") ||
-											tapfile.toLowerCase().contains(".p00")) {
-										
-										String type = sharedPrefs.getString("prefPRGLoaderType", "1");
-										int o_type = Integer.parseInt(type);
-										C64Program prg = new C64Program();
-										prg.setIdx(index);
-										prg.setLoadModel(o_type);
-										prg.Load(tapfile);
-										Thread t = new Thread(new RenderPercentPublisher(prg, this));
-										t.start();
-										prg.writeAudioStreamData(basePath, baseName);
-										result = Activity.RESULT_OK;
-									} else {
-										
-										ZXTAP zxt = new ZXTAP(sr);
-										zxt.Load(tapfile);
-										
-										if (zxt.isValid()) {
-											Thread t = new Thread(new RenderPercentPublisher(zxt, this));
-											t.start();
-											zxt.writeAudioStreamData(basePath, baseName);
-											result = Activity.RESULT_OK;
-										} else {
-											result = Activity.RESULT_CANCELED;
-										}
-									}
+				GenericTape tape = format.create(sr);
+				if (tape instanceof ZXTAP) {
+					((ZXTAP)tape).setAccelerated(zxAccelerated);
+				}
+				if (tape instanceof C64Program) {
+					((C64Program)tape).setIdx(index);
+					((C64Program)tape).setLoadModel(o_type);
+				}
+				
+				tape.Load(tapfile);
+				if (tape.isValid()) {
+					tape.setRenderListener(new RenderProgress());
+					tape.setCancellationToken(cancellation);
+					tape.setRenderKey(key);
+					
+					if (progressive) {
+						// start playing once the first block is out, the rest renders behind it
+						final String output = basePath+":"+baseName;
+						LiveRender live = LiveRender.begin(basePath, baseName);
+						live.setListener(new LiveRender.Listener() {
+							public void blockReady(int index) {
+								if (index == 1) {
+									sendResult(Activity.RESULT_OK, output);
 								}
 							}
+						});
+					}
+					try {
+						tape.writeAudioStreamData(basePath, baseName);
+					} finally {
+						if (progressive) {
+							LiveRender.end(basePath, baseName);
 						}
 					}
+					result = Activity.RESULT_OK;
+					
+					// make room for the new render, it is the most recently played
+					cache.touch(baseName);
+					cache.trim(baseName);
+				} else {
+					result = Activity.RESULT_CANCELED;
 				}
+			} catch (RenderCancelledException e) {
+				// its blocks are gone already, no manifest was written
+				Log.i(getClass().getName(), "Render of "+baseName+" cancelled");
+				result = Activity.RESULT_CANCELED;
 			} catch (Exception e) {
 				Log.w(getClass().getName(), "Exceptions rendering audio", e);
 			}
@@ -208,72 +178,61 @@ public class RenderRunnable implements Runnable {
 			result = Activity.RESULT_OK;
 		}
 		
-		if (signal) {
-			Messenger messenger = mActivity.getMessenger();
-			Message msg = Message.obtain();
-			msg.arg1 = result;
-			msg.obj = basePath+":"+baseName;
-			try {
-				messenger.send(msg);
-			} catch (android.os.RemoteException e1) {
-				Log.w(getClass().getName(), "Exception sending message", e1);
-			}
-		}
-
-	}
-	
-	private  byte[] createChecksum(String filename) throws Exception {
-	       InputStream fis =  new SmartFileInputStream(filename);
-
-	       byte[] buffer = new byte[1024];
-	       MessageDigest complete = MessageDigest.getInstance("MD5");
-	       int numRead;
-
-	       do {
-	           numRead = fis.read(buffer);
-	           if (numRead > 0) {
-	               complete.update(buffer, 0, numRead);
-	           }
-	       } while (numRead != -1);
+		Log.i(getClass().getName(), "Render cache hits "+RenderCache.getHits()+", misses "+RenderCache.getMisses()+", evictions "+RenderCache.getEvictions());
+		
+		sendResult(result, basePath+":"+baseName);
 
-	       fis.close();
-	       return complete.digest();
 	}
 	
-	private String getMD5DigestForFile( String filename ) throws Exception {
-		       byte[] b = createChecksum(filename);
-		       String result = "";
-
-		       for (int i=0; i < b.length; i++) {
-		           result += Integer.toString( ( b[i] & 0xff ) + 0x100, 16).substring( 1 );
-		       }
-		       return result;
+	/* tells the activity the render is playable, only once */
+	private synchronized void sendResult(int result, String output) {
+		if (!signal || handedOff) {
+			return;
+		}
+		handedOff = (result == Activity.RESULT_OK);
+		
+		Messenger messenger = mActivity.getMessenger();
+		Message msg = Message.obtain();
+		msg.arg1 = result;
+		msg.obj = output;
+		try {
+			messenger.send(msg);
+		} catch (android.os.RemoteException e1) {
+			Log.w(getClass().getName(), "Exception sending message", e1);
+		}
 	}
 	
-	public class RenderPercentPublisher implements Runnable {
+	/*
+	 * Passes render progress on to the activity.  Blocks can finish far more
+	 * often than the display needs, so a percentage is only sent when it has
+	 * changed and not more than every PROGRESS_INTERVAL ms.
+	 */
+	public class RenderProgress implements RenderListener {
 		
-		private GenericTape tape;
-		private RenderRunnable rs;
+		public static final long PROGRESS_INTERVAL = 250;
+		
+		private int lastPercent = -1;
+		private long lastSent = 0;
+		private long started = System.currentTimeMillis();
 
-		public RenderPercentPublisher( GenericTape tape, RenderRunnable rs ) {
-			this.tape = tape;
-			this.rs = rs;
+		@Override
+		public synchronized void blockRendered(GenericTape tape, long bytesConsumed, int blocksDone, long samplesEmitted) {
+			long now = System.currentTimeMillis();
+			if (now - lastSent < PROGRESS_INTERVAL) {
+				return;
+			}
+			int percent = Math.min(99, Math.round(100*tape.getRenderPercent()));
+			if (percent != lastPercent) {
+				lastPercent = percent;
+				lastSent = now;
+				sendPercentMessage(percent);
+			}
 		}
 
 		@Override
-		public void run() {
-			
-			while (tape.getRenderPercent() < 1) {
-				// publish it and sleep
-				try {
-					rs.sendPercentMessage( Math.round(100*tape.getRenderPercent()) );
-					Thread.sleep(500);
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}
-			
+		public synchronized void renderFinished(GenericTape tape, long bytesConsumed, int blocksDone, long samplesEmitted) {
+			sendPercentMessage(100);
+			Log.i(getClass().getName(), "Rendered "+bytesConsumed+" bytes into "+blocksDone+" blocks, "+samplesEmitted+" samples in "+(System.currentTimeMillis() - started)+"ms");
 		}
 		
 	}
@@ -0,0 +1,441 @@
+package co.kica.tap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Renders a small synthetic tape of each format and compares every block
+ * (type, sample count and MD5 of its samples) with a recorded reference, so
+ * a change to pulse timing, leap sample correction or a parser that alters
+ * the waveform shows up before it reaches real hardware.  Each tape is
+ * rendered in sequence and in parallel, with plain and BlockCodec blocks,
+ * and all four must give the same samples.
+ *
+ * The reference is render-check.txt next to this class.  After a change
+ * that is meant to alter the samples, record a new one with
+ * -Drendercheck.record=<file> and check the differences by hand.
+ */
+public class RenderCheckTest {
+
+	public static final String REFERENCE = "render-check.txt";
+
+	/* one synthetic tape and how to render it */
+	private static abstract class Case {
+		String name;
+		String ext;
+		int sampleRate = 44100;
+
+		Case( String name, String ext ) {
+			this.name = name;
+			this.ext = ext;
+		}
+
+		abstract byte[] data() throws IOException;
+
+		GenericTape create( String path ) {
+			return FormatRegistry.detect(path).create(sampleRate);
+		}
+	}
+
+	private File dir;
+	private int threads;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("rendercheck", "");
+		dir.delete();
+		dir.mkdirs();
+		threads = ParallelRenderer.getThreads();
+	}
+
+	@After
+	public void tearDown() {
+		ParallelRenderer.setThreads(threads);
+		IntermediateBlockRepresentation.setCompressBlocks(true);
+		delete(dir);
+	}
+
+	@Test
+	public void rendersMatchReference() throws IOException {
+		List<String> rendered = new ArrayList<String>();
+		for (Case c : cases()) {
+			rendered.addAll(check(c));
+		}
+
+		String record = System.getProperty("rendercheck.record");
+		if (record != null) {
+			PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(record), "UTF-8"));
+			w.println("# tape\tblock\ttype\tsamples\tmd5");
+			for (String line : rendered) {
+				w.println(line);
+			}
+			w.close();
+		}
+
+		InputStream in = RenderCheckTest.class.getResourceAsStream(REFERENCE);
+		assertNotNull("no reference "+REFERENCE+" on the classpath", in);
+		List<String> expected = readReference(in);
+		for (int i=0; i<Math.max(expected.size(), rendered.size()); i++) {
+			String e = (i < expected.size()) ? expected.get(i) : "(nothing)";
+			String r = (i < rendered.size()) ? rendered.get(i) : "(nothing)";
+			assertEquals("line "+(i+1)+" of "+REFERENCE, e, r);
+		}
+	}
+
+	private static List<String> readReference( InputStream in ) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String line;
+		while ((line = r.readLine()) != null) {
+			if (line.length() > 0 && !line.startsWith("#")) {
+				lines.add(line);
+			}
+		}
+		r.close();
+		return lines;
+	}
+
+	/* renders c every way there is, which must all give the same samples */
+	private List<String> check( Case c ) throws IOException {
+		File tape = new File(dir, c.name+"."+c.ext);
+		FileOutputStream fos = new FileOutputStream(tape);
+		fos.write(c.data());
+		fos.close();
+
+		List<String> first = null;
+		int n = 0;
+		for (int t : new int[] { 1, 4 }) {
+			for (boolean compress : new boolean[] { false, true }) {
+				ParallelRenderer.setThreads(t);
+				IntermediateBlockRepresentation.setCompressBlocks(compress);
+				List<String> result = render(c, tape.getPath(), new File(dir, c.name+"_"+(n++)));
+				if (first == null) {
+					first = result;
+				} else {
+					assertEquals(c.name+" with "+t+" threads"+(compress ? ", compressed" : ""), first, result);
+				}
+			}
+		}
+		return first;
+	}
+
+	private List<String> render( Case c, String path, File out ) throws IOException {
+		out.mkdirs();
+		GenericTape tape = c.create(path);
+		tape.Load(path);
+
+		ArrayList<String> lines = new ArrayList<String>();
+		if (!tape.isValid()) {
+			lines.add(c.name+"\tinvalid");
+			return lines;
+		}
+		tape.writeAudioStreamData(out.getPath(), "check");
+
+		IntermediateBlockRepresentation ibr = new IntermediateBlockRepresentation(out.getPath(), "check");
+		long total = 0;
+		for (int i=1; i<=ibr.getTotalBlocks(); i++) {
+			byte[] samples = ibr.blockData(i);
+			total += samples.length;
+			lines.add(c.name+"\t"+i+"\t"+ibr.blockType(i)+"\t"+samples.length+"\t"+md5(samples));
+		}
+		lines.add(c.name+"\ttotal\t"+ibr.getSystem()+"\t"+total+"\t"+ibr.getTotalBlocks()+" blocks, loader "+ibr.getLoaderType());
+		return lines;
+	}
+
+	private static String md5( byte[] b ) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			StringBuilder sb = new StringBuilder();
+			for (byte x : md.digest(b)) {
+				sb.append(Character.forDigit((x >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(x & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return "";
+		}
+	}
+
+	private static void delete( File f ) {
+		File[] list = f.listFiles();
+		if (list != null) {
+			for (File c : list) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+
+	/* the synthetic tapes, small enough to render in a second or two */
+	private List<Case> cases() {
+		ArrayList<Case> cases = new ArrayList<Case>();
+
+		cases.add(new Case("tzx", "tzx") {
+			byte[] data() throws IOException { return tzx(); }
+		});
+		Case tzx22 = new Case("tzx22", "tzx") {
+			byte[] data() throws IOException { return tzx(); }
+		};
+		tzx22.sampleRate = 22050;
+		cases.add(tzx22);
+
+		cases.add(new Case("zxtap", "tap") {
+			byte[] data() throws IOException { return zxtap(); }
+		});
+		cases.add(new Case("zxtap-accel", "tap") {
+			byte[] data() throws IOException { return zxtap(); }
+			GenericTape create( String path ) {
+				GenericTape t = super.create(path);
+				((ZXTAP)t).setAccelerated(true);
+				return t;
+			}
+		});
+
+		cases.add(new Case("uef", "uef") {
+			byte[] data() throws IOException { return uef(); }
+		});
+		cases.add(new Case("uef-gz", "uef") {
+			byte[] data() throws IOException { return gzip(uef()); }
+		});
+
+		cases.add(new Case("c64v0", "tap") {
+			byte[] data() throws IOException { return c64(0); }
+		});
+		cases.add(new Case("c64v1", "tap") {
+			byte[] data() throws IOException { return c64(1); }
+		});
+
+		cases.add(new Case("atari", "cas") {
+			byte[] data() throws IOException { return atari(); }
+		});
+		cases.add(new Case("msx", "cas") {
+			byte[] data() throws IOException { return msx(); }
+		});
+
+		for (final int model : new int[] { -1, 0, 1, 2 }) {
+			cases.add(new Case("prg"+model, "prg") {
+				byte[] data() throws IOException { return prg(); }
+				GenericTape create( String path ) {
+					GenericTape t = super.create(path);
+					((C64Program)t).setLoadModel(model);
+					return t;
+				}
+			});
+		}
+
+		return cases;
+	}
+
+	private static void le16( ByteArrayOutputStream o, int v ) {
+		o.write(v & 0xff);
+		o.write((v >> 8) & 0xff);
+	}
+
+	/* blocks 0x10 to 0x15 and a 0x20 pause */
+	static byte[] tzx() throws IOException {
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		o.write("ZXTape!".getBytes());
+		o.write(0x1a);
+		o.write(1);
+		o.write(20);
+
+		// 0x10 standard speed data
+		byte[] blk = new byte[19];
+		for (int i=1; i<blk.length; i++) {
+			blk[i] = (byte)(i*7);
+		}
+		o.write(0x10);
+		le16(o, 1000);
+		le16(o, blk.length);
+		o.write(blk);
+
+		// 0x11 turbo speed data
+		o.write(0x11);
+		for (int v : new int[] { 2000, 600, 700, 800, 1600, 1500 }) {
+			le16(o, v);
+		}
+		o.write(6);
+		le16(o, 500);
+		o.write(new byte[] { 5, 0, 0 });
+		o.write(new byte[] { (byte)0xff, 1, 2, 3, (byte)0xaa });
+
+		// 0x12 pure tone, 0x13 pulse sequence
+		o.write(0x12);
+		le16(o, 2168);
+		le16(o, 100);
+		o.write(0x13);
+		o.write(3);
+		le16(o, 667);
+		le16(o, 735);
+		le16(o, 272);
+
+		// 0x14 pure data
+		o.write(0x14);
+		le16(o, 855);
+		le16(o, 1710);
+		o.write(8);
+		le16(o, 1000);
+		o.write(new byte[] { 3, 0, 0 });
+		o.write(new byte[] { 1, 2, 3 });
+
+		// 0x15 direct recording
+		o.write(0x15);
+		le16(o, 79);
+		le16(o, 100);
+		o.write(5);
+		o.write(new byte[] { 4, 0, 0 });
+		o.write(new byte[] { (byte)0xf0, 0x0f, (byte)0xaa, (byte)0xf8 });
+
+		// 0x20 pause
+		o.write(0x20);
+		le16(o, 2000);
+		return o.toByteArray();
+	}
+
+	/* a Spectrum header and data block */
+	static byte[] zxtap() throws IOException {
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		byte[] h = new byte[19];
+		for (int i=1; i<h.length; i++) {
+			h[i] = (byte)(0x20+i);
+		}
+		le16(o, h.length);
+		o.write(h);
+
+		byte[] d = new byte[300];
+		d[0] = (byte)0xff;
+		for (int i=1; i<d.length; i++) {
+			d[i] = (byte)(i*13);
+		}
+		le16(o, d.length);
+		o.write(d);
+		return o.toByteArray();
+	}
+
+	private static void uefChunk( ByteArrayOutputStream o, int id, byte[] d ) throws IOException {
+		le16(o, id);
+		le16(o, d.length);
+		le16(o, 0);
+		o.write(d);
+	}
+
+	/* data, carrier, gaps, defined format, security cycles and phase changes */
+	static byte[] uef() throws IOException {
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		o.write("UEF File!".getBytes());
+		o.write(0);
+		o.write(10);
+		o.write(0);
+		uefChunk(o, 0x0000, "hello".getBytes());
+		uefChunk(o, 0x0110, new byte[] { (byte)0xdc, 5 });
+		uefChunk(o, 0x0100, new byte[] { 0x2a, 1, 2, 3, (byte)0xff, (byte)0x80 });
+		uefChunk(o, 0x0111, new byte[] { 100, 0, 50, 0 });
+		uefChunk(o, 0x0112, new byte[] { (byte)0x58, 2 });
+		uefChunk(o, 0x0104, new byte[] { 8, 'N', 1, 0x55, 0x66 });
+		uefChunk(o, 0x0117, new byte[] { (byte)0x2c, 1 });
+		uefChunk(o, 0x0100, new byte[] { 0x11, 0x22 });
+		uefChunk(o, 0x0117, new byte[] { (byte)0xb0, 4 });
+		uefChunk(o, 0x0102, new byte[] { 3, (byte)0x5a, (byte)0xc3 });
+		uefChunk(o, 0x0116, new byte[] { 0, 0, 0, 0x3f });
+		uefChunk(o, 0x0115, new byte[] { (byte)0xb4, 0 });
+		uefChunk(o, 0x0114, new byte[] { 12, 0, 0, 'P', 'W', (byte)0xa5, (byte)0xf0 });
+		uefChunk(o, 0x0115, new byte[] { 0, 0 });
+		uefChunk(o, 0x0114, new byte[] { 9, 0, 0, 'W', 'P', 0x3c, (byte)0x80 });
+		uefChunk(o, 0x0110, new byte[] { 10, 0 });
+		return o.toByteArray();
+	}
+
+	static byte[] gzip( byte[] b ) throws IOException {
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		GZIPOutputStream g = new GZIPOutputStream(o);
+		g.write(b);
+		g.close();
+		return o.toByteArray();
+	}
+
+	/* pilot, some bytes, a pause (long form in version 1) and more pulses */
+	static byte[] c64( int version ) throws IOException {
+		ByteArrayOutputStream d = new ByteArrayOutputStream();
+		for (int i=0; i<400; i++) {
+			d.write(0x30);
+		}
+		for (int i=0; i<60; i++) {
+			d.write(0x42);
+			d.write(0x56);
+		}
+		d.write(0);
+		if (version == 1) {
+			d.write(new byte[] { 0, 0x40, 2 });
+		} else {
+			d.write(new byte[] { 0, 0 });
+		}
+		for (int i=0; i<100; i++) {
+			d.write(0x30 + (i % 30));
+		}
+
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		o.write("C64-TAPE-RAW".getBytes());
+		o.write(version);
+		o.write(new byte[3]);
+		le16(o, d.size());
+		le16(o, 0);
+		o.write(d.toByteArray());
+		return o.toByteArray();
+	}
+
+	/* header, baud rate and one data record */
+	static byte[] atari() throws IOException {
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		o.write("FUJI".getBytes());
+		o.write(new byte[] { 0, 0, 0, 0 });
+		o.write("baud".getBytes());
+		o.write(new byte[] { 0, 0, (byte)0x58, 2 });
+		o.write("data".getBytes());
+		o.write(new byte[] { 4, 0, (byte)0xc8, 0, 0x55, 0x55, (byte)0xfc, 1 });
+		return o.toByteArray();
+	}
+
+	/* an ASCII file header followed by a data block */
+	static byte[] msx() throws IOException {
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		byte[] header = { 0x1f, (byte)0xa6, (byte)0xde, (byte)0xba, (byte)0xcc, 0x13, 0x7d, 0x74 };
+		o.write(header);
+		for (int i=0; i<10; i++) {
+			o.write(0xd0);
+		}
+		o.write("GAME  ".getBytes());
+		o.write(header);
+		o.write(new byte[] { 0, (byte)0x90, 4, (byte)0x90, 0, (byte)0x90, 1, 2, 3, 4 });
+		return o.toByteArray();
+	}
+
+	/* 200 bytes loading at $0801 */
+	static byte[] prg() {
+		byte[] p = new byte[202];
+		p[0] = 1;
+		p[1] = 8;
+		for (int i=2; i<p.length; i++) {
+			p[i] = (byte)(i*3);
+		}
+		return p;
+	}
+}
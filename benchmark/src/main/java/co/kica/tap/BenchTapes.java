@@ -0,0 +1,181 @@
+package co.kica.tap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/*
+ * Synthetic tapes for the benchmarks, a few seconds to a minute of audio each
+ * so a render is long enough to measure but an iteration stays short.  The
+ * contents mean nothing, they only have to be valid enough to render.
+ */
+public class BenchTapes {
+
+	/* file extension the tape is written with, detection goes by it for PRG */
+	public static String ext( String format ) {
+		if (format.equals("prg")) {
+			return "prg";
+		} else if (format.equals("atari") || format.equals("msx")) {
+			return "cas";
+		} else if (format.equals("tzx")) {
+			return "tzx";
+		} else if (format.equals("uef")) {
+			return "uef";
+		}
+		return "tap";
+	}
+
+	public static byte[] data( String format ) throws IOException {
+		if (format.equals("c64")) {
+			return c64();
+		} else if (format.equals("tzx")) {
+			return tzx();
+		} else if (format.equals("uef")) {
+			return uef();
+		} else if (format.equals("msx")) {
+			return msx();
+		} else if (format.equals("atari")) {
+			return atari();
+		} else if (format.equals("prg")) {
+			return prg();
+		}
+		throw new IllegalArgumentException("No synthetic tape for "+format);
+	}
+
+	private static void le16( ByteArrayOutputStream o, int v ) {
+		o.write(v & 0xff);
+		o.write((v >> 8) & 0xff);
+	}
+
+	private static byte[] pattern( int length, int seed ) {
+		byte[] b = new byte[length];
+		for (int i=0; i<length; i++) {
+			b[i] = (byte)(i*seed + (i >> 8));
+		}
+		return b;
+	}
+
+	/* pilot and 20000 bytes worth of pulses, with a pause between two halves */
+	static byte[] c64() throws IOException {
+		ByteArrayOutputStream d = new ByteArrayOutputStream();
+		for (int half=0; half<2; half++) {
+			for (int i=0; i<27000; i++) {
+				d.write(PRGFormat.shortPulse);
+			}
+			byte[] p = pattern(10000, 7);
+			for (int i=0; i<p.length; i++) {
+				d.write(PRGFormat.longPulse);
+				d.write(PRGFormat.mediumPulse);
+				for (int bit=0; bit<8; bit++) {
+					if ((p[i] & (1 << bit)) != 0) {
+						d.write(PRGFormat.mediumPulse);
+						d.write(PRGFormat.shortPulse);
+					} else {
+						d.write(PRGFormat.shortPulse);
+						d.write(PRGFormat.mediumPulse);
+					}
+				}
+			}
+			d.write(new byte[] { 0, 0, 0x40, 2 });
+		}
+
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		o.write("C64-TAPE-RAW".getBytes());
+		o.write(1);
+		o.write(new byte[3]);
+		le16(o, d.size() & 0xffff);
+		le16(o, d.size() >> 16);
+		o.write(d.toByteArray());
+		return o.toByteArray();
+	}
+
+	/* a Spectrum header and screen sized data block, twice, as standard speed blocks */
+	static byte[] tzx() throws IOException {
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		o.write("ZXTape!".getBytes());
+		o.write(0x1a);
+		o.write(1);
+		o.write(20);
+
+		for (int n=0; n<2; n++) {
+			byte[] h = pattern(19, 3);
+			h[0] = 0;
+			o.write(0x10);
+			le16(o, 1000);
+			le16(o, h.length);
+			o.write(h);
+
+			byte[] d = pattern(6914, 13);
+			d[0] = (byte)0xff;
+			o.write(0x10);
+			le16(o, 2000);
+			le16(o, d.length);
+			o.write(d);
+		}
+		return o.toByteArray();
+	}
+
+	private static void uefChunk( ByteArrayOutputStream o, int id, byte[] d ) throws IOException {
+		le16(o, id);
+		le16(o, d.length & 0xffff);
+		le16(o, d.length >> 16);
+		o.write(d);
+	}
+
+	/* 48 blocks of 256 bytes, each after a carrier tone and a gap */
+	static byte[] uef() throws IOException {
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		o.write("UEF File!".getBytes());
+		o.write(0);
+		o.write(10);
+		o.write(0);
+		for (int n=0; n<48; n++) {
+			uefChunk(o, 0x0112, new byte[] { (byte)0xc8, 0 });
+			uefChunk(o, 0x0110, new byte[] { (byte)0xdc, 5 });
+			uefChunk(o, 0x0100, pattern(256, n+5));
+		}
+		return o.toByteArray();
+	}
+
+	/* a binary file header followed by a 16K data block */
+	static byte[] msx() throws IOException {
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		byte[] header = { 0x1f, (byte)0xa6, (byte)0xde, (byte)0xba, (byte)0xcc, 0x13, 0x7d, 0x74 };
+		o.write(header);
+		for (int i=0; i<10; i++) {
+			o.write(0xd0);
+		}
+		o.write("BENCH ".getBytes());
+		o.write(header);
+		o.write(new byte[] { 0, (byte)0x90, (byte)0xff, (byte)0xcf, 0, (byte)0x90 });
+		o.write(pattern(16384, 11));
+		return o.toByteArray();
+	}
+
+	/* 64 records of 132 bytes at 600 baud */
+	static byte[] atari() throws IOException {
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		o.write("FUJI".getBytes());
+		o.write(new byte[] { 0, 0, 0, 0 });
+		o.write("baud".getBytes());
+		o.write(new byte[] { 0, 0, (byte)0x58, 2 });
+		for (int n=0; n<64; n++) {
+			byte[] r = pattern(132, n+3);
+			r[0] = 0x55;
+			r[1] = 0x55;
+			r[2] = (byte)0xfc;
+			o.write("data".getBytes());
+			le16(o, r.length);
+			le16(o, 250);
+			o.write(r);
+		}
+		return o.toByteArray();
+	}
+
+	/* 16K loading at $0801 */
+	static byte[] prg() {
+		byte[] p = pattern(16386, 3);
+		p[0] = 1;
+		p[1] = 8;
+		return p;
+	}
+}
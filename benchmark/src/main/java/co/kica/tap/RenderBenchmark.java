@@ -0,0 +1,150 @@
+package co.kica.tap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Rendering throughput of each format, from tape file to finished blocks,
+ * with the block files discarded (GenericTape.setDiscardBlocks) so the disk
+ * doesn't swamp what's being measured.  Only the manifest is
+ * written.
+ *
+ *   render      samples/sec is the "samples" counter; bytes allocated per
+ *               sample is the GC profiler's gc.alloc.rate.norm (bytes per
+ *               render) divided by samples per render, printed at setup
+ *   firstBlock  time from Load to the first finished block, what a user
+ *               waits before playback can start
+ *
+ *   ./gradlew :benchmark:jmh -PjmhArgs="-p format=tzx -p compress=false"
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RenderBenchmark {
+
+	@Param({ "c64", "tzx", "uef", "msx", "atari", "prg" })
+	public String format;
+
+	/* blocks still go through BlockCodec when set, only the file is skipped */
+	@Param({ "false", "true" })
+	public boolean compress;
+
+	@Param({ "1" })
+	public int threads;
+
+	private File dir;
+	private String path;
+	private int oldThreads;
+
+	/* per thread totals, JMH reports them as rates */
+	@State(Scope.Thread)
+	@AuxCounters
+	public static class Counters {
+		public long samples;
+		public long blocks;
+
+		@Setup(Level.Iteration)
+		public void clean() {
+			samples = 0;
+			blocks = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = File.createTempFile("renderbench", "");
+		dir.delete();
+		dir.mkdirs();
+
+		path = new File(dir, "bench."+BenchTapes.ext(format)).getPath();
+		FileOutputStream fos = new FileOutputStream(path);
+		fos.write(BenchTapes.data(format));
+		fos.close();
+
+		oldThreads = ParallelRenderer.getThreads();
+		ParallelRenderer.setThreads(threads);
+		IntermediateBlockRepresentation.setCompressBlocks(compress);
+
+		GenericTape tape = renderTape(null);
+		if (tape.getSamplesRendered() == 0) {
+			throw new IllegalStateException(format+" tape rendered no samples");
+		}
+		System.out.println("RenderBenchmark: "+format+" renders "+tape.getSamplesRendered()+" samples in "+tape.getBlocksRendered()+" blocks");
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() {
+		IntermediateBlockRepresentation.setCompressBlocks(true);
+		ParallelRenderer.setThreads(oldThreads);
+
+		File[] list = dir.listFiles();
+		if (list != null) {
+			for (File f : list) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private GenericTape renderTape( CancellationToken token ) {
+		// an IBR picks up a manifest that is already there, each render starts afresh
+		new File(dir, "bench.manifest").delete();
+
+		GenericTape tape = FormatRegistry.detect(path).create(44100);
+		tape.setDiscardBlocks(true);
+		if (token != null) {
+			tape.setCancellationToken(token);
+			final CancellationToken first = token;
+			tape.setRenderListener(new RenderListener() {
+				public void blockRendered( GenericTape tape, long bytesConsumed, int blocksDone, long samplesEmitted ) {
+					first.cancel();
+				}
+				public void renderFinished( GenericTape tape, long bytesConsumed, int blocksDone, long samplesEmitted ) {
+				}
+			});
+		}
+		tape.Load(path);
+		tape.writeAudioStreamData(dir.getPath(), "bench");
+		return tape;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public GenericTape render( Counters counters ) {
+		GenericTape tape = renderTape(null);
+		counters.samples += tape.getSamplesRendered();
+		counters.blocks += tape.getBlocksRendered();
+		return tape;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long firstBlock() {
+		try {
+			renderTape(new CancellationToken());
+		} catch (RenderCancelledException e) {
+			// expected, the render stops once the first block is done
+		}
+		return 0;
+	}
+}